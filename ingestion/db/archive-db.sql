@@ -29,7 +29,7 @@ CREATE TABLE local_ega.main (
        -- UNIQUE (correlation_id, inbox_user, inbox_path), --, inbox_path_encrypted_sha256),
 
        -- Archive information
-       header                 TEXT, -- Crypt4GH header
+       header                 BYTEA, -- Crypt4GH header (raw bytes)
 
        payload_size           BIGINT,
        payload_checksum       VARCHAR(128) NULL, -- NOT NULL, -- only sha256
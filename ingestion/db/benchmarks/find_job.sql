@@ -0,0 +1,105 @@
+-- Benchmark of the job lookups, as main grows
+--
+-- Run it on a scratch database, initialized with db.sql:
+--   psql --dbname lega -v rows=1000000 -f find_job.sql
+--
+-- Everything happens in a transaction that is rolled back at the end.
+-- Compare the plans and the execution times for several values of rows:
+-- with main_lookup_idx (and the primary keys), they should stay flat (index
+-- scans, O(log n)); without it (-v noindex=1, dropped inside the transaction),
+-- they are sequential scans and grow linearly.
+--
+-- run.sh runs it for a few sizes, on a PostgreSQL 12 container (see README.md).
+
+\set ON_ERROR_STOP 1
+\if :{?rows}
+\else
+  \set rows 1000000
+\endif
+\timing on
+
+BEGIN;
+
+\if :{?noindex}
+DROP INDEX local_ega.main_lookup_idx;
+\endif
+
+-- Fake jobs: 90% COMPLETED, the rest spread over the other statuses
+INSERT INTO local_ega.main (id, correlation_id, inbox_user, inbox_path)
+SELECT i,
+       md5(i::text || 'cid'),
+       'user' || (i % 1000),
+       '/inbox/file' || i || '.c4gh'
+FROM generate_series(1, :rows) AS i;
+
+-- Partitions of the terminal jobs
+SELECT * FROM local_ega.maintain_partitions();
+
+INSERT INTO local_ega.job_state (job_id, status)
+SELECT i,
+       CASE WHEN i % 10 <> 0 THEN 'COMPLETED'
+            ELSE (ARRAY['INIT', 'VERIFIED', 'BACKUP1', 'BACKUP2', 'ERROR', 'CANCELED'])[1 + (i / 10) % 6]
+       END
+FROM generate_series(1, :rows) AS i;
+
+INSERT INTO local_ega.job_staging (job_id, staging_info, decrypted_payload_checksum)
+SELECT i, '{}'::jsonb, encode(sha256(i::text::bytea), 'hex')
+FROM generate_series(1, :rows) AS i;
+
+ANALYZE local_ega.main;
+ANALYZE local_ega.job_state;
+ANALYZE local_ega.job_staging;
+
+-- Pick a job in the middle
+SELECT correlation_id AS cid, inbox_path AS path, user_id AS usr, decrypted_payload_checksum AS chk
+FROM local_ega.jobs
+WHERE id = :rows / 2 \gset
+
+-- find_job (accession branch of the dispatcher)
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT id, staging_info
+FROM local_ega.jobs
+WHERE correlation_id = :'cid' AND
+      inbox_path = :'path' AND
+      user_id = :'usr' AND
+      decrypted_payload_checksum = :'chk';
+
+-- insert_job, with a checksum: the occurences update
+EXPLAIN (ANALYZE, BUFFERS)
+UPDATE local_ega.job_state s SET occurences = occurences + 1, last_modified = clock_timestamp()
+FROM local_ega.main m
+WHERE s.job_id = m.id AND
+      m.correlation_id = :'cid' AND
+      m.inbox_path = :'path' AND
+      m.inbox_user = :'usr' AND
+      NOT (s.status = 'ERROR' OR s.status = 'CANCELED');
+
+-- insert_job without a checksum, and cancel_job: the ongoing jobs
+EXPLAIN (ANALYZE, BUFFERS)
+UPDATE local_ega.job_state s SET status = 'CANCELED', last_modified = clock_timestamp()
+FROM local_ega.main m
+WHERE s.job_id = m.id AND
+      m.correlation_id = :'cid' AND
+      m.inbox_path = :'path' AND
+      m.inbox_user = :'usr' AND
+      s.status NOT IN ('ERROR', 'CANCELED', 'COMPLETED');
+
+-- set_status: should be a HOT update (see n_tup_hot_upd below), on job_state_active only
+EXPLAIN (ANALYZE, BUFFERS)
+UPDATE local_ega.job_state SET status = 'BACKUP1', last_modified = clock_timestamp()
+WHERE job_id = :rows / 2 AND status NOT IN ('ERROR', 'CANCELED', 'COMPLETED');
+
+-- is_canceled: only the terminal partitions
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT EXISTS(SELECT 1 FROM local_ega.job_state WHERE job_id = :rows / 2 AND status IN ('CANCELED', 'ERROR', 'COMPLETED'));
+
+SELECT relname, n_tup_upd, n_tup_hot_upd FROM pg_stat_xact_user_tables WHERE relname LIKE 'job_state%' ORDER BY relname;
+
+SELECT pg_size_pretty(pg_relation_size('local_ega.main'))             AS main_size,
+       pg_size_pretty(pg_relation_size('local_ega.job_state_active')) AS job_state_active_size;
+\if :{?noindex}
+\else
+SELECT pg_size_pretty(pg_relation_size('local_ega.main_lookup_idx'))  AS lookup_idx_size;
+\endif
+
+ROLLBACK;
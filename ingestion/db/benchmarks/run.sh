@@ -0,0 +1,54 @@
+#!/usr/bin/env bash
+set -Eeo pipefail
+
+# Runs find_job.sql for a few sizes, with and without main_lookup_idx,
+# and saves the outputs (plans and timings) in results/.
+# Fails if the find_job plan does not use main_lookup_idx (and the job_staging join) when it exists.
+#
+# By default, on a scratch PostgreSQL 12 container, initialized with db.sql.
+# Set PGHOST (and the other libpq variables) to use another scratch database instead:
+# it must be initialized with db.sql, and nothing is kept (all is rolled back).
+#
+#   ./run.sh
+#   ROWS="10000 1000000" ./run.sh
+
+HERE=$(cd "$(dirname "${BASH_SOURCE[0]}")" && pwd)
+ROWS=${ROWS:-"10000 100000 1000000 10000000"}
+PG_IMAGE=${PG_IMAGE:-postgres:12.1-alpine}  # as in ../Dockerfile
+RESULTS=${RESULTS:-${HERE}/results}
+
+if [[ -z "${PGHOST}" ]]; then
+    CONTAINER=lega-benchmark-$$
+    trap 'docker rm -f ${CONTAINER} >/dev/null' EXIT
+    docker run -d --name ${CONTAINER} -e POSTGRES_DB=lega -e POSTGRES_HOST_AUTH_METHOD=trust ${PG_IMAGE} >/dev/null
+    function pg { docker exec -i ${CONTAINER} psql -U postgres --dbname lega -X "$@"; }
+    echo "Waiting for ${PG_IMAGE}"
+    until docker logs ${CONTAINER} 2>&1 | grep -q 'PostgreSQL init process complete'; do sleep 1; done
+    until docker exec ${CONTAINER} pg_isready -U postgres --dbname lega -q; do sleep 1; done
+    pg -q -v ON_ERROR_STOP=1 < "${HERE}/../db.sql"
+else
+    function pg { psql -X "$@"; }
+fi
+
+mkdir -p "${RESULTS}"
+VERSION=$(pg -At -c 'SHOW server_version;' < /dev/null | cut -d' ' -f1)
+
+for rows in ${ROWS}; do
+    for variant in index noindex; do
+	out=${RESULTS}/find_job-pg${VERSION}-${rows}-${variant}.txt
+	echo "${rows} rows, ${variant}: ${out}"
+	args=(-v rows=${rows})
+	[[ "${variant}" == "noindex" ]] && args+=(-v noindex=1)
+	pg "${args[@]}" < "${HERE}/find_job.sql" > "${out}" 2>&1
+	grep 'Execution Time' "${out}" || true
+	if [[ "${variant}" == "index" ]]; then
+	    # The first plan is find_job's, on the jobs view: main, job_state and job_staging
+	    plan=$(sed -n '/QUERY PLAN/,/Execution Time/{p;/Execution Time/q;}' "${out}")
+	    if ! grep -q 'Scan using main_lookup_idx on main' <<< "${plan}" ||
+	       ! grep -q ' on job_staging' <<< "${plan}"; then
+		echo "The find_job plan does not use main_lookup_idx, or misses the job_staging join: see ${out}" >&2
+		exit 1
+	    fi
+	fi
+    done
+done
@@ -33,12 +33,17 @@ VALUES (10, 'INIT'        , 'Initializing a file ingestion'),
 -- ##################################################
 --                        FILES
 -- ##################################################
+-- A job is split in 3 tables, by how often its columns change:
+--  * main:        what we know when the job is created (written once, or rarely: accession id, errors)
+--  * job_state:   the status machine (updated several times per job)
+--  * job_staging: the staging information (written once, at verification)
+-- The job_state rows are narrow, and the table leaves free space in each page,
+-- so the status updates are HOT updates (no index nor wide row rewritten).
 
 CREATE TABLE local_ega.main (
 
        id                     SERIAL, PRIMARY KEY(id), UNIQUE (id),
        correlation_id         TEXT NOT NULL,
-       occurences	      INTEGER NOT NULL DEFAULT 1,
 
        -- Original/Encrypted Submission file
        inbox_user             TEXT NOT NULL, -- Elixir ID, or internal user
@@ -52,16 +57,7 @@ CREATE TABLE local_ega.main (
        -- constraint
        -- UNIQUE (correlation_id, inbox_user, inbox_path), --, inbox_path_encrypted_sha256),
 
-
-       -- Status
-       status                 VARCHAR NOT NULL REFERENCES local_ega.status (code) DEFAULT 'INIT',
-       			      -- No "ON DELETE CASCADE": update to the new status in case the old one is deleted
-
-       -- Staging information
-       staging_info  json, -- JSON formatted blob
-       
        accession_id                     TEXT, UNIQUE (accession_id),
-       decrypted_payload_checksum       VARCHAR(128) NULL, -- NOT NULL, -- only sha256
 
        -- Errors
        hostname      TEXT,
@@ -73,114 +69,193 @@ CREATE TABLE local_ega.main (
        -- Table Audit / Logs
        created_by             NAME DEFAULT CURRENT_USER, -- Postgres users
        last_modified_by       NAME DEFAULT CURRENT_USER, --
-       created_at             TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT clock_timestamp(),
-       last_modified          TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT clock_timestamp()
+       created_at             TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT clock_timestamp()
 );
 CREATE UNIQUE INDEX main_idx ON local_ega.main(id);
 
+-- Lookup of a job by its message, in insert_job, cancel_job and find_job (accession ids from Central EGA)
+CREATE INDEX main_lookup_idx ON local_ega.main(correlation_id, inbox_path, inbox_user) INCLUDE (id);
+
+
+-- Status machine
+-- Only the job id is indexed: updating the other columns does not touch any index.
+-- No index on the status, not even a partial one, or the updates would not be HOT anymore.
+-- last_modified is set by the updates themselves (no trigger).
+--
+-- Partitioned by status: the ongoing jobs are in a small partition, the hot queries only touch
+-- that one (the status is in their WHERE clause), however many jobs are archived.
+-- A job moves to the terminal partition when it completes, is canceled or fails
+-- (that update is a delete + insert, the others stay HOT).
+-- The terminal jobs are partitioned again by ranges of job ids (ie, by creation time),
+-- created ahead and detached when old by local_ega.maintain_partitions() (see ega-maintenance).
+-- No primary key: it would have to include the status, which would then be indexed.
+-- The job ids are unique anyway: one row per job, inserted by insert_job.
+CREATE TABLE local_ega.job_state (
+       job_id                 INTEGER NOT NULL REFERENCES local_ega.main(id) ON DELETE CASCADE,
+       status                 VARCHAR NOT NULL REFERENCES local_ega.status (code) DEFAULT 'INIT',
+       			      -- No "ON DELETE CASCADE": update to the new status in case the old one is deleted
+       occurences	      INTEGER NOT NULL DEFAULT 1,
+       last_modified          TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT clock_timestamp()
+) PARTITION BY LIST (status);
+CREATE INDEX job_state_job_idx ON local_ega.job_state(job_id); -- created on each partition
+
+CREATE TABLE local_ega.job_state_active PARTITION OF local_ega.job_state
+       FOR VALUES IN ('INIT', 'VERIFIED', 'BACKUP1', 'BACKUP2')
+       WITH (fillfactor = 50); -- room for the updated row versions in the same page
+
+CREATE TABLE local_ega.job_state_terminal PARTITION OF local_ega.job_state
+       FOR VALUES IN ('COMPLETED', 'ERROR', 'CANCELED')
+       PARTITION BY RANGE (job_id);
+-- Safety net, in case maintain_partitions() is late: it should stay empty
+CREATE TABLE local_ega.job_state_terminal_default PARTITION OF local_ega.job_state_terminal DEFAULT;
+
+-- Any other (new) status
+CREATE TABLE local_ega.job_state_other PARTITION OF local_ega.job_state DEFAULT
+       WITH (fillfactor = 50);
+
+
+-- Staging information, appended once the job is verified
+CREATE TABLE local_ega.job_staging (
+       job_id                      INTEGER NOT NULL REFERENCES local_ega.main(id) ON DELETE CASCADE, PRIMARY KEY(job_id),
+       staging_info                jsonb, -- JSON formatted blob
+       decrypted_payload_checksum  VARCHAR(128) NULL, -- NOT NULL, -- only sha256
+       created_at                  TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT clock_timestamp()
+);
 
-
--- When there is an updated, remember the timestamp
-CREATE FUNCTION main_updated()
-RETURNS TRIGGER AS $main_updated$
-BEGIN
-     NEW.last_modified = clock_timestamp();
-		 RETURN NEW;
-END;
-$main_updated$ LANGUAGE plpgsql;
-
-CREATE TRIGGER main_updated AFTER UPDATE ON local_ega.main FOR EACH ROW EXECUTE PROCEDURE main_updated();
+-- Claim checks: the content of the messages between the LocalEGA workers.
+-- With [broker] claim_check, a worker appends a new version here and the message only carries
+-- the job id and that version (see lega.utils.amqp.publish). A version is never updated:
+-- the workers cache them. They are purged once the job is finished (see ega-maintenance).
+CREATE TABLE local_ega.job_payloads (
+       job_id      INTEGER NOT NULL REFERENCES local_ega.main(id) ON DELETE CASCADE,
+       version     INTEGER NOT NULL,
+       data        jsonb NOT NULL,
+       created_at  TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT clock_timestamp(),
+       PRIMARY KEY(job_id, version)
+);
 
 
 -- ##################################################
 --         Jobs View
 -- ##################################################
--- 
+-- Read-only: the functions below update the tables directly
 CREATE VIEW local_ega.jobs AS
-SELECT id,
-       correlation_id,
-       occurences,
-       inbox_user                      AS user_id,
-       inbox_path,
-       inbox_path_encrypted_checksum   AS inbox_checksum,
-       inbox_path_encrypted_checksum_type AS inbox_checksum_type,
-       staging_info,
-       status,
-       accession_id,
-       decrypted_payload_checksum
-FROM local_ega.main;
+SELECT m.id,
+       m.correlation_id,
+       s.occurences,
+       m.inbox_user                      AS user_id,
+       m.inbox_path,
+       m.inbox_path_encrypted_checksum   AS inbox_checksum,
+       m.inbox_path_encrypted_checksum_type AS inbox_checksum_type,
+       g.staging_info,
+       s.status,
+       m.accession_id,
+       g.decrypted_payload_checksum,
+       s.last_modified
+FROM local_ega.main m
+INNER JOIN local_ega.job_state s ON s.job_id = m.id
+LEFT JOIN local_ega.job_staging g ON g.job_id = m.id;
 
 -- Insert into main
-CREATE FUNCTION local_ega.insert_job(cid           local_ega.jobs.correlation_id%TYPE,
-			             inpath        local_ega.jobs.inbox_path%TYPE,
-			             uid           local_ega.jobs.user_id%TYPE,
-			             checksum      local_ega.jobs.inbox_checksum%TYPE,
-			             checksum_type local_ega.jobs.inbox_checksum_type%TYPE)
-RETURNS local_ega.jobs.id%TYPE AS $insert_job$
+CREATE FUNCTION local_ega.insert_job(cid           local_ega.main.correlation_id%TYPE,
+			             inpath        local_ega.main.inbox_path%TYPE,
+			             uid           local_ega.main.inbox_user%TYPE,
+			             checksum      local_ega.main.inbox_path_encrypted_checksum%TYPE,
+			             checksum_type local_ega.main.inbox_path_encrypted_checksum_type%TYPE)
+RETURNS local_ega.main.id%TYPE AS $insert_job$
     #variable_conflict use_column
     DECLARE
-        job_id  local_ega.jobs.id%TYPE;
-	found_updates INTEGER;
+        new_id       local_ega.main.id%TYPE;
+        canceled_id  local_ega.main.id%TYPE;
     BEGIN
 
 	IF checksum IS NULL THEN
 	   -- If sha256 is NULL, then we create a new job all the time and 
 	   -- mark the other ongoing ones as canceled (ie not in error or completed state)
-	   UPDATE local_ega.jobs SET status = 'CANCELED'
-	                   WHERE correlation_id = cid AND
-	  	                 inbox_path = inpath AND
-	  	              	 user_id = uid AND
-			      	 NOT (status = 'ERROR' OR status = 'COMPLETED');
-	   -- Insert a new job anyhow
-	   INSERT INTO local_ega.jobs (correlation_id,inbox_path,user_id)
-	   VALUES(cid,inpath,uid) RETURNING local_ega.jobs.id INTO job_id;
-
+	   FOR canceled_id IN
+	       UPDATE local_ega.job_state s SET status = 'CANCELED', last_modified = clock_timestamp()
+	              FROM local_ega.main m
+	              WHERE s.job_id = m.id AND
+		            m.correlation_id = cid AND
+	  	            m.inbox_path = inpath AND
+	  	            m.inbox_user = uid AND
+			    s.status NOT IN ('ERROR', 'CANCELED', 'COMPLETED')
+	              RETURNING s.job_id
+	   LOOP
+	       PERFORM pg_notify('job_canceled', canceled_id::text); -- stops the running workers
+	   END LOOP;
 	ELSE
 	   -- If checksum is NOT NULL, then we know more about that particular file.
 	   -- If a job is not CANCELED/ERROR, then we increment the occurences count and return -1 
 	   -- (ie not need to work), otherwise, we insert a new job.
-	   UPDATE local_ega.jobs SET occurences = occurences + 1
-	                   WHERE correlation_id = cid AND
-	  	                 inbox_path = inpath AND
-				 user_id = uid AND
-	  	              	 inbox_checksum = checksum AND
-	  	              	 inbox_checksum_type = checksum_type AND
-			      	 NOT (status = 'ERROR' OR status = 'CANCELED');
+	   UPDATE local_ega.job_state s SET occurences = occurences + 1, last_modified = clock_timestamp()
+	          FROM local_ega.main m
+	          WHERE s.job_id = m.id AND
+		        m.correlation_id = cid AND
+	  	        m.inbox_path = inpath AND
+			m.inbox_user = uid AND
+	  	        m.inbox_path_encrypted_checksum = checksum AND
+	  	        m.inbox_path_encrypted_checksum_type = checksum_type AND
+			NOT (s.status = 'ERROR' OR s.status = 'CANCELED');
 	   IF FOUND THEN RETURN -1; END IF;
-
-	   -- If not found, make a new insertion
-	   INSERT INTO local_ega.jobs (correlation_id,inbox_path,user_id,inbox_checksum,inbox_checksum_type)
-	   VALUES(cid,inpath,uid,checksum,checksum_type)
-	   ON CONFLICT -- ON CONSTRAINT (correlation_id,inbox_path,user_id,inbox_sha256)
-	   DO NOTHING -- UPDATE SET status = 'CANCELED' -- data race here ?
-	              --        WHEN NOT (status = 'ERROR' OR status = 'COMPLETED')
-	   RETURNING local_ega.jobs.id
-	   INTO job_id;
 	END IF;
 
-	RETURN job_id;
+	-- Insert a new job
+	INSERT INTO local_ega.main (correlation_id,inbox_path,inbox_user,inbox_path_encrypted_checksum,inbox_path_encrypted_checksum_type)
+	VALUES(cid,inpath,uid,checksum,checksum_type)
+	RETURNING local_ega.main.id INTO new_id;
+
+	INSERT INTO local_ega.job_state (job_id) VALUES (new_id);
+
+	RETURN new_id;
     END;
 $insert_job$ LANGUAGE plpgsql;
 
+-- Insert several jobs in one call (ie one round trip), as insert_job would, one after the other.
+-- The arrays have the same length, one element per job. Returns the ids in the same order (or -1).
+CREATE FUNCTION local_ega.insert_jobs(cids           TEXT[],
+			              inpaths        TEXT[],
+			              uids           TEXT[],
+			              checksums      TEXT[],
+			              checksum_types local_ega.checksum_algorithm[])
+RETURNS SETOF local_ega.main.id%TYPE AS $insert_jobs$
+    BEGIN
+	FOR i IN 1 .. coalesce(array_length(cids, 1), 0) LOOP
+	    -- in order: the same file can come twice in a batch
+	    RETURN NEXT local_ega.insert_job(cids[i], inpaths[i], uids[i], checksums[i], checksum_types[i]);
+	END LOOP;
+    END;
+$insert_jobs$ LANGUAGE plpgsql;
+
 -- Mark job as canceled
-CREATE FUNCTION local_ega.cancel_job(cid           local_ega.jobs.correlation_id%TYPE,
-		   	             inpath        local_ega.jobs.inbox_path%TYPE,
-			             uid           local_ega.jobs.user_id%TYPE,
-		     	             checksum      local_ega.jobs.inbox_checksum%TYPE,
-			             checksum_type local_ega.jobs.inbox_checksum_type%TYPE)
+CREATE FUNCTION local_ega.cancel_job(cid           local_ega.main.correlation_id%TYPE,
+		   	             inpath        local_ega.main.inbox_path%TYPE,
+			             uid           local_ega.main.inbox_user%TYPE,
+		     	             checksum      local_ega.main.inbox_path_encrypted_checksum%TYPE,
+			             checksum_type local_ega.main.inbox_path_encrypted_checksum_type%TYPE)
 RETURNS void AS $cancel_job$
     #variable_conflict use_column
+    DECLARE
+        canceled_id  local_ega.main.id%TYPE;
     BEGIN
-        UPDATE local_ega.jobs SET status = 'CANCELED'
-	       		WHERE correlation_id = cid AND
-			      inbox_path = inpath AND
-			      inbox_user = uid AND
-			      (CASE WHEN checksum is NULL
-			            THEN TRUE
-				    ELSE inbox_path_encrypted_checksum = checksum AND 
-				         inbox_path_encrypted_checksum_type = checksum_type
-			       END) AND
-			      NOT (status = 'ERROR' OR status = 'COMPLETED');
+        FOR canceled_id IN
+            UPDATE local_ega.job_state s SET status = 'CANCELED', last_modified = clock_timestamp()
+	           FROM local_ega.main m
+	           WHERE s.job_id = m.id AND
+		         m.correlation_id = cid AND
+		         m.inbox_path = inpath AND
+		         m.inbox_user = uid AND
+		         (CASE WHEN checksum is NULL
+			       THEN TRUE
+			       ELSE m.inbox_path_encrypted_checksum = checksum AND 
+				    m.inbox_path_encrypted_checksum_type = checksum_type
+		          END) AND
+		         s.status NOT IN ('ERROR', 'CANCELED', 'COMPLETED')
+	           RETURNING s.job_id
+        LOOP
+            -- Sent on commit: the workers running that job stop (see lega.utils.db.CancellationWatcher)
+            PERFORM pg_notify('job_canceled', canceled_id::text);
+        END LOOP;
     END;
 $cancel_job$ LANGUAGE plpgsql;
 
@@ -188,10 +263,26 @@ CREATE FUNCTION local_ega.has_status(fid local_ega.jobs.id%TYPE, statuses status
 RETURNS boolean AS $has_status$
 #variable_conflict use_column
 BEGIN
-   RETURN EXISTS(SELECT 1 FROM local_ega.jobs WHERE id = fid AND (status = ANY(statuses)));
+   RETURN EXISTS(SELECT 1 FROM local_ega.job_state WHERE job_id = fid AND (status = ANY(statuses)));
 END;
 $has_status$ LANGUAGE plpgsql;
 
+-- Append a new version of the message content of a job, and return its number.
+-- A job is handled by one worker at a time: a concurrent insert fails on the primary key.
+CREATE FUNCTION local_ega.insert_payload(jid   local_ega.main.id%TYPE,
+                                         info  local_ega.job_payloads.data%TYPE)
+RETURNS local_ega.job_payloads.version%TYPE AS $insert_payload$
+    DECLARE
+        new_version  local_ega.job_payloads.version%TYPE;
+    BEGIN
+	INSERT INTO local_ega.job_payloads (job_id, version, data)
+	       SELECT jid, coalesce(max(p.version), 0) + 1, info
+	       FROM local_ega.job_payloads p WHERE p.job_id = jid
+	       RETURNING version INTO new_version;
+	RETURN new_version;
+    END;
+$insert_payload$ LANGUAGE plpgsql;
+
 
 -- ##################################################
 --                      ERRORS
@@ -199,29 +290,33 @@ $has_status$ LANGUAGE plpgsql;
 
 -- Just showing the current/active errors
 CREATE VIEW local_ega.errors AS
-SELECT id,
-       correlation_id,
-       hostname,
-       error_type,
-       error_msg       AS message,
-       from_user,
-       last_modified   AS error_at
-FROM local_ega.main;
-
-CREATE FUNCTION local_ega.insert_error(jid        local_ega.errors.id%TYPE,
-                                       h          local_ega.errors.hostname%TYPE,
-                                       etype      local_ega.errors.error_type%TYPE,
-                                       msg        local_ega.errors.message%TYPE,
-                                       from_user  local_ega.errors.from_user%TYPE)
+SELECT m.id,
+       m.correlation_id,
+       m.hostname,
+       m.error_type,
+       m.error_msg       AS message,
+       m.from_user,
+       s.last_modified   AS error_at
+FROM local_ega.main m
+INNER JOIN local_ega.job_state s ON s.job_id = m.id;
+
+CREATE FUNCTION local_ega.insert_error(jid        local_ega.main.id%TYPE,
+                                       h          local_ega.main.hostname%TYPE,
+                                       etype      local_ega.main.error_type%TYPE,
+                                       msg        local_ega.main.error_msg%TYPE,
+                                       from_user  local_ega.main.from_user%TYPE)
     RETURNS void AS $insert_error$
     BEGIN
-       UPDATE local_ega.jobs
-              SET status = 'ERROR',
-	          hostname = h,
+       UPDATE local_ega.main
+              SET hostname = h,
 		  error_type = etype,
 		  error_msg = msg,
-		  from_user = from_user
+		  from_user = insert_error.from_user
 	      WHERE id = jid;
+       UPDATE local_ega.job_state
+              SET status = 'ERROR',
+	          last_modified = clock_timestamp()
+	      WHERE job_id = jid;
     END;
 $insert_error$ LANGUAGE plpgsql;
 
@@ -232,38 +327,169 @@ $insert_error$ LANGUAGE plpgsql;
 -- To keep track of already used session keys,
 -- we record their checksum
 CREATE TABLE local_ega.session_key_checksums_sha256 (
-       session_key_checksum      VARCHAR(128) NOT NULL, PRIMARY KEY(session_key_checksum), UNIQUE (session_key_checksum),
+       session_key_checksum      BYTEA NOT NULL, PRIMARY KEY(session_key_checksum), -- sha256 digest, not hex
+       CHECK (octet_length(session_key_checksum) = 32),
        job_id                    INTEGER NOT NULL REFERENCES local_ega.main(id) ON DELETE CASCADE
 );
+CREATE INDEX session_key_checksums_sha256_job_idx ON local_ega.session_key_checksums_sha256(job_id);
+
+
+-- Tell the ingest workers about new session keys (for their in-memory filter)
+CREATE FUNCTION local_ega.notify_session_key()
+RETURNS TRIGGER AS $notify_session_key$
+BEGIN
+     PERFORM pg_notify('session_keys', encode(NEW.session_key_checksum, 'hex'));
+     RETURN NULL;
+END;
+$notify_session_key$ LANGUAGE plpgsql;
+
+CREATE TRIGGER notify_session_key AFTER INSERT ON local_ega.session_key_checksums_sha256
+FOR EACH ROW EXECUTE PROCEDURE local_ega.notify_session_key();
 
 
 -- Returns if the session key checksums are already found in the database
-CREATE FUNCTION local_ega.has_session_keys_checksums_sha256(checksums text[]) --local_ega.session_key_checksums.session_key_checksum%TYPE []
+CREATE FUNCTION local_ega.has_session_keys_checksums_sha256(checksums bytea[]) --local_ega.session_key_checksums.session_key_checksum%TYPE []
     RETURNS boolean AS $has_session_keys_checksums_sha256$
     #variable_conflict use_column
     BEGIN
 	RETURN EXISTS(SELECT 1
                       FROM local_ega.session_key_checksums_sha256 sk 
-	              INNER JOIN local_ega.jobs f
-		      ON f.id = sk.job_id 
+	              INNER JOIN local_ega.job_state f
+		      ON f.job_id = sk.job_id 
 		      WHERE (f.status <> 'ERROR' AND f.status <> 'CANCELED') AND -- no data-race on those values
 		      	    sk.session_key_checksum = ANY(checksums));
     END;
 $has_session_keys_checksums_sha256$ LANGUAGE plpgsql;
 
 
--- Insert all the checksums for a given job_id
-CREATE FUNCTION local_ega.insert_session_keys_checksums_sha256(jid        local_ega.jobs.id%TYPE,
-                                                               checksums  text[])
-    RETURNS VOID AS $insert_session_keys_checksums_sha256$
+-- ##################################################
+--              End of the verification
+-- ##################################################
+-- Record the staging information and the session keys of a job,
+-- and mark it as VERIFIED, all at once. It returns:
+--   0: the job is VERIFIED
+--   1: the job was canceled, or ended, in the meantime: nothing is recorded
+--   2: one of the session keys is already used by another ongoing job: nothing is recorded
+-- The job row is locked, so a concurrent cancel_job waits for us.
+-- The session keys uniqueness relies on the primary key (no check-then-insert data race).
+-- It is idempotent: retrying it after a lost commit returns 0 again.
+CREATE FUNCTION local_ega.finish_verification(jid           local_ega.main.id%TYPE,
+                                              info          local_ega.job_staging.staging_info%TYPE,
+                                              checksum      local_ega.job_staging.decrypted_payload_checksum%TYPE,
+                                              sk_checksums  bytea[])
+    RETURNS INTEGER AS $finish_verification$
     #variable_conflict use_column
     BEGIN
+	PERFORM 1 FROM local_ega.job_state
+	          WHERE job_id = jid AND NOT (status = 'CANCELED' OR status = 'ERROR' OR status = 'COMPLETED')
+		  FOR NO KEY UPDATE;
+	IF NOT FOUND THEN RETURN 1; END IF;
+
+	-- Keys used by jobs in error or canceled can be reused
+	DELETE FROM local_ega.session_key_checksums_sha256 sk
+	       USING local_ega.job_state m
+	       WHERE m.job_id = sk.job_id AND
+	             m.job_id <> jid AND
+		     (m.status = 'ERROR' OR m.status = 'CANCELED') AND
+		     sk.session_key_checksum = ANY(sk_checksums);
+
 	INSERT INTO local_ega.session_key_checksums_sha256(job_id,session_key_checksum)
-               (SELECT jid AS job_id, t.session_key_checksum
-	          FROM (SELECT unnest(checksums) AS session_key_checksum)
-		   as t);
+	       (SELECT DISTINCT jid AS job_id, t.session_key_checksum
+	          FROM (SELECT unnest(sk_checksums) AS session_key_checksum) AS t)
+	       ON CONFLICT DO NOTHING;
+
+	IF EXISTS(SELECT 1 FROM local_ega.session_key_checksums_sha256
+	                   WHERE session_key_checksum = ANY(sk_checksums) AND job_id <> jid) THEN
+	   DELETE FROM local_ega.session_key_checksums_sha256 WHERE job_id = jid;
+	   RETURN 2;
+	END IF;
+
+	INSERT INTO local_ega.job_staging (job_id, staging_info, decrypted_payload_checksum)
+	       VALUES (jid, info, checksum)
+	       ON CONFLICT (job_id) DO UPDATE SET staging_info = EXCLUDED.staging_info,
+	                                          decrypted_payload_checksum = EXCLUDED.decrypted_payload_checksum;
+	UPDATE local_ega.job_state
+	       SET status = 'VERIFIED',
+	           last_modified = clock_timestamp()
+	       WHERE job_id = jid AND
+	             status NOT IN ('ERROR', 'CANCELED', 'COMPLETED'); -- only the active partition
+	RETURN 0;
+    END;
+$finish_verification$ LANGUAGE plpgsql;
+
+
+-- ##################################################
+--         Partitions of the terminal jobs
+-- ##################################################
+-- Run regularly, by ega-maintenance:
+--  * creates the partitions of the next job ids, ahead of the jobs creation,
+--    so that job_state_terminal_default stays empty (its rows are moved otherwise).
+--  * if keep is not NULL, detaches the partitions where all the jobs are finished,
+--    and were last modified more than keep ago. They are renamed job_state_archive_<from>_<to>,
+--    can be dumped and dropped, and are not in the jobs view anymore.
+--    Their session keys checksums are kept (finish_verification still refuses them).
+-- span must stay the same from one call to the next.
+-- SECURITY DEFINER: lega does not own the tables.
+CREATE FUNCTION local_ega.maintain_partitions(span  INTEGER  DEFAULT 1000000,
+                                              ahead INTEGER  DEFAULT 2,
+                                              keep  INTERVAL DEFAULT NULL)
+    RETURNS TABLE(action TEXT, relation TEXT) AS $maintain_partitions$
+    DECLARE
+        last_id  INTEGER;
+        first_id INTEGER;
+        lo       INTEGER;
+        hi       INTEGER;
+        rel      TEXT;
+        part     RECORD;
+        recent   BOOLEAN;
+    BEGIN
+        SELECT coalesce(max(id), 0) INTO last_id FROM local_ega.main;
+        -- Start lower if the default partition was used
+        SELECT least(last_id, min(job_id)) INTO first_id FROM local_ega.job_state_terminal_default;
+
+        FOR n IN (first_id / span) .. (last_id / span + ahead) LOOP
+            lo := n * span;
+            hi := lo + span;
+            rel := format('job_state_terminal_%s_%s', lo, hi);
+            CONTINUE WHEN to_regclass(rel) IS NOT NULL;
+            EXECUTE format('CREATE TABLE %I (LIKE local_ega.job_state_terminal INCLUDING DEFAULTS)', rel);
+            EXECUTE format('WITH moved AS (DELETE FROM local_ega.job_state_terminal_default '
+                           '               WHERE job_id >= %s AND job_id < %s RETURNING *) '
+                           'INSERT INTO %I SELECT * FROM moved', lo, hi, rel);
+            EXECUTE format('ALTER TABLE local_ega.job_state_terminal ATTACH PARTITION %I FOR VALUES FROM (%s) TO (%s)',
+                           rel, lo, hi);
+            action := 'created'; relation := rel;
+            RETURN NEXT;
+        END LOOP;
+
+        IF keep IS NULL THEN RETURN; END IF;
+
+        FOR part IN SELECT c.relname, m[1]::INTEGER AS lo, m[2]::INTEGER AS hi
+                    FROM pg_inherits i
+                    INNER JOIN pg_class c ON c.oid = i.inhrelid,
+                    LATERAL regexp_match(c.relname, '^job_state_terminal_(\d+)_(\d+)$') AS m
+                    WHERE i.inhparent = 'local_ega.job_state_terminal'::regclass AND
+                          m IS NOT NULL -- not the default partition
+                    ORDER BY 2
+        LOOP
+            -- Skip the ranges with new jobs to come, or ongoing ones: they would end up in the default partition
+            EXIT WHEN part.hi > last_id;
+            CONTINUE WHEN EXISTS(SELECT 1 FROM local_ega.job_state
+                                 WHERE job_id >= part.lo AND job_id < part.hi AND
+                                       status NOT IN ('ERROR', 'CANCELED', 'COMPLETED'));
+            EXECUTE format('SELECT EXISTS(SELECT 1 FROM %I WHERE last_modified > now() - $1)', part.relname)
+                    INTO recent USING keep;
+            CONTINUE WHEN recent;
+            rel := format('job_state_archive_%s_%s', part.lo, part.hi);
+            EXECUTE format('ALTER TABLE local_ega.job_state_terminal DETACH PARTITION %I', part.relname);
+            EXECUTE format('ALTER TABLE %I RENAME TO %I', part.relname, rel);
+            action := 'detached'; relation := rel;
+            RETURN NEXT;
+        END LOOP;
     END;
-$insert_session_keys_checksums_sha256$ LANGUAGE plpgsql;
+$maintain_partitions$ LANGUAGE plpgsql SECURITY DEFINER SET search_path = local_ega, pg_temp;
+
+REVOKE ALL ON FUNCTION local_ega.maintain_partitions(INTEGER, INTEGER, INTERVAL) FROM PUBLIC;
 
 
 -- ##########################################################################
@@ -278,3 +504,4 @@ CREATE USER lega;
 GRANT USAGE ON SCHEMA local_ega TO lega;
 GRANT ALL PRIVILEGES ON ALL TABLES    IN SCHEMA local_ega TO lega; -- Read/Write access on local_ega.* for lega
 GRANT ALL PRIVILEGES ON ALL SEQUENCES IN SCHEMA local_ega TO lega; -- Don't forget the sequences
+GRANT EXECUTE ON FUNCTION local_ega.maintain_partitions(INTEGER, INTEGER, INTERVAL) TO lega; -- for ega-maintenance
@@ -0,0 +1,102 @@
+-- Migration for the pipeline database (db.sql)
+--
+-- The session keys checksums are stored as 32-byte sha256 digests (bytea),
+-- instead of 64-character hex strings, and the redundant UNIQUE index
+-- (a copy of the primary key) is dropped.
+-- The functions taking the checksums now take bytea[].
+--
+-- psql --dbname lega -v ON_ERROR_STOP=1 -f 0001-session-keys-bytea.sql
+
+BEGIN;
+
+SET search_path TO local_ega;
+
+DROP FUNCTION IF EXISTS local_ega.has_session_keys_checksums_sha256(text[]);
+DROP FUNCTION IF EXISTS local_ega.finish_verification(integer, json, varchar, text[]);
+
+ALTER TABLE local_ega.session_key_checksums_sha256
+      DROP CONSTRAINT IF EXISTS session_key_checksums_sha256_session_key_checksum_key,
+      ALTER COLUMN session_key_checksum TYPE BYTEA USING decode(session_key_checksum, 'hex'),
+      ADD CHECK (octet_length(session_key_checksum) = 32);
+
+-- Tell the ingest workers about new session keys (for their in-memory filter)
+CREATE OR REPLACE FUNCTION local_ega.notify_session_key()
+RETURNS TRIGGER AS $notify_session_key$
+BEGIN
+     PERFORM pg_notify('session_keys', encode(NEW.session_key_checksum, 'hex'));
+     RETURN NULL;
+END;
+$notify_session_key$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS notify_session_key ON local_ega.session_key_checksums_sha256;
+CREATE TRIGGER notify_session_key AFTER INSERT ON local_ega.session_key_checksums_sha256
+FOR EACH ROW EXECUTE PROCEDURE local_ega.notify_session_key();
+
+
+-- Returns if the session key checksums are already found in the database
+CREATE FUNCTION local_ega.has_session_keys_checksums_sha256(checksums bytea[]) --local_ega.session_key_checksums.session_key_checksum%TYPE []
+    RETURNS boolean AS $has_session_keys_checksums_sha256$
+    #variable_conflict use_column
+    BEGIN
+	RETURN EXISTS(SELECT 1
+                      FROM local_ega.session_key_checksums_sha256 sk 
+	              INNER JOIN local_ega.jobs f
+		      ON f.id = sk.job_id 
+		      WHERE (f.status <> 'ERROR' AND f.status <> 'CANCELED') AND -- no data-race on those values
+		      	    sk.session_key_checksum = ANY(checksums));
+    END;
+$has_session_keys_checksums_sha256$ LANGUAGE plpgsql;
+
+
+-- ##################################################
+--              End of the verification
+-- ##################################################
+-- Record the staging information and the session keys of a job,
+-- and mark it as VERIFIED, all at once. It returns:
+--   0: the job is VERIFIED
+--   1: the job was canceled, or ended, in the meantime: nothing is recorded
+--   2: one of the session keys is already used by another ongoing job: nothing is recorded
+-- The job row is locked, so a concurrent cancel_job waits for us.
+-- The session keys uniqueness relies on the primary key (no check-then-insert data race).
+-- It is idempotent: retrying it after a lost commit returns 0 again.
+CREATE FUNCTION local_ega.finish_verification(jid           local_ega.jobs.id%TYPE,
+                                              info          local_ega.jobs.staging_info%TYPE,
+                                              checksum      local_ega.jobs.decrypted_payload_checksum%TYPE,
+                                              sk_checksums  bytea[])
+    RETURNS INTEGER AS $finish_verification$
+    #variable_conflict use_column
+    BEGIN
+	PERFORM 1 FROM local_ega.main
+	          WHERE id = jid AND NOT (status = 'CANCELED' OR status = 'ERROR' OR status = 'COMPLETED')
+		  FOR UPDATE;
+	IF NOT FOUND THEN RETURN 1; END IF;
+
+	-- Keys used by jobs in error or canceled can be reused
+	DELETE FROM local_ega.session_key_checksums_sha256 sk
+	       USING local_ega.main m
+	       WHERE m.id = sk.job_id AND
+	             m.id <> jid AND
+		     (m.status = 'ERROR' OR m.status = 'CANCELED') AND
+		     sk.session_key_checksum = ANY(sk_checksums);
+
+	INSERT INTO local_ega.session_key_checksums_sha256(job_id,session_key_checksum)
+	       (SELECT DISTINCT jid AS job_id, t.session_key_checksum
+	          FROM (SELECT unnest(sk_checksums) AS session_key_checksum) AS t)
+	       ON CONFLICT DO NOTHING;
+
+	IF EXISTS(SELECT 1 FROM local_ega.session_key_checksums_sha256
+	                   WHERE session_key_checksum = ANY(sk_checksums) AND job_id <> jid) THEN
+	   DELETE FROM local_ega.session_key_checksums_sha256 WHERE job_id = jid;
+	   RETURN 2;
+	END IF;
+
+	UPDATE local_ega.main
+	       SET status = 'VERIFIED',
+	           staging_info = info,
+		   decrypted_payload_checksum = checksum
+	       WHERE id = jid;
+	RETURN 0;
+    END;
+$finish_verification$ LANGUAGE plpgsql;
+
+COMMIT;
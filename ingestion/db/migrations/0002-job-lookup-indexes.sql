@@ -0,0 +1,99 @@
+-- Migration for the pipeline database (db.sql)
+--
+-- Indexes for the job lookups:
+--  * main_lookup_idx, for find_job (and insert_job)
+--  * main_ongoing_idx, a partial index on the ongoing jobs, for insert_job and cancel_job
+-- insert_job and cancel_job use the same predicate as main_ongoing_idx.
+-- cancel_job also uses the column names of the jobs view.
+--
+-- The indexes are built concurrently, outside of a transaction, so the workers can keep running.
+--
+-- psql --dbname lega -v ON_ERROR_STOP=1 -f 0002-job-lookup-indexes.sql
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS main_lookup_idx
+       ON local_ega.main(correlation_id, inbox_path, inbox_user, decrypted_payload_checksum) INCLUDE (id);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS main_ongoing_idx
+       ON local_ega.main(correlation_id, inbox_path, inbox_user)
+       WHERE status NOT IN ('ERROR', 'CANCELED', 'COMPLETED');
+
+BEGIN;
+
+SET search_path TO local_ega;
+
+CREATE OR REPLACE FUNCTION local_ega.insert_job(cid           local_ega.jobs.correlation_id%TYPE,
+			             inpath        local_ega.jobs.inbox_path%TYPE,
+			             uid           local_ega.jobs.user_id%TYPE,
+			             checksum      local_ega.jobs.inbox_checksum%TYPE,
+			             checksum_type local_ega.jobs.inbox_checksum_type%TYPE)
+RETURNS local_ega.jobs.id%TYPE AS $insert_job$
+    #variable_conflict use_column
+    DECLARE
+        job_id  local_ega.jobs.id%TYPE;
+	found_updates INTEGER;
+    BEGIN
+
+	IF checksum IS NULL THEN
+	   -- If sha256 is NULL, then we create a new job all the time and 
+	   -- mark the other ongoing ones as canceled (ie not in error or completed state)
+	   UPDATE local_ega.jobs SET status = 'CANCELED'
+	                   WHERE correlation_id = cid AND
+	  	                 inbox_path = inpath AND
+	  	              	 user_id = uid AND
+			      	 status NOT IN ('ERROR', 'CANCELED', 'COMPLETED'); -- as main_ongoing_idx
+	   -- Insert a new job anyhow
+	   INSERT INTO local_ega.jobs (correlation_id,inbox_path,user_id)
+	   VALUES(cid,inpath,uid) RETURNING local_ega.jobs.id INTO job_id;
+
+	ELSE
+	   -- If checksum is NOT NULL, then we know more about that particular file.
+	   -- If a job is not CANCELED/ERROR, then we increment the occurences count and return -1 
+	   -- (ie not need to work), otherwise, we insert a new job.
+	   UPDATE local_ega.jobs SET occurences = occurences + 1
+	                   WHERE correlation_id = cid AND
+	  	                 inbox_path = inpath AND
+				 user_id = uid AND
+	  	              	 inbox_checksum = checksum AND
+	  	              	 inbox_checksum_type = checksum_type AND
+			      	 NOT (status = 'ERROR' OR status = 'CANCELED');
+	   IF FOUND THEN RETURN -1; END IF;
+
+	   -- If not found, make a new insertion
+	   INSERT INTO local_ega.jobs (correlation_id,inbox_path,user_id,inbox_checksum,inbox_checksum_type)
+	   VALUES(cid,inpath,uid,checksum,checksum_type)
+	   ON CONFLICT -- ON CONSTRAINT (correlation_id,inbox_path,user_id,inbox_sha256)
+	   DO NOTHING -- UPDATE SET status = 'CANCELED' -- data race here ?
+	              --        WHEN NOT (status = 'ERROR' OR status = 'COMPLETED')
+	   RETURNING local_ega.jobs.id
+	   INTO job_id;
+	END IF;
+
+	RETURN job_id;
+    END;
+$insert_job$ LANGUAGE plpgsql;
+
+-- Mark job as canceled
+CREATE OR REPLACE FUNCTION local_ega.cancel_job(cid           local_ega.jobs.correlation_id%TYPE,
+		   	             inpath        local_ega.jobs.inbox_path%TYPE,
+			             uid           local_ega.jobs.user_id%TYPE,
+		     	             checksum      local_ega.jobs.inbox_checksum%TYPE,
+			             checksum_type local_ega.jobs.inbox_checksum_type%TYPE)
+RETURNS void AS $cancel_job$
+    #variable_conflict use_column
+    BEGIN
+        UPDATE local_ega.jobs SET status = 'CANCELED'
+	       		WHERE correlation_id = cid AND
+			      inbox_path = inpath AND
+			      user_id = uid AND
+			      (CASE WHEN checksum is NULL
+			            THEN TRUE
+				    ELSE inbox_checksum = checksum AND 
+				         inbox_checksum_type = checksum_type
+			       END) AND
+			      status NOT IN ('ERROR', 'CANCELED', 'COMPLETED'); -- as main_ongoing_idx
+    END;
+$cancel_job$ LANGUAGE plpgsql;
+
+COMMIT;
+
+ANALYZE local_ega.main;
@@ -0,0 +1,261 @@
+-- Migration for the pipeline database (db.sql)
+--
+-- The jobs are split in 3 tables, by how often their columns change:
+--  * main:        the columns written once (or rarely)
+--  * job_state:   status, occurences and last_modified, with fillfactor 50, for HOT updates
+--  * job_staging: staging_info (now jsonb) and decrypted_payload_checksum, written once
+-- The jobs and errors views are recreated on top, read-only,
+-- and the functions update the tables directly.
+-- The main_ongoing_idx partial index is dropped: an index on the status would prevent the HOT updates.
+-- main_lookup_idx no longer has decrypted_payload_checksum, which moved to job_staging.
+--
+-- The status updates are blocked while it runs (the tables are rewritten).
+-- The dropped columns are reclaimed by the next VACUUM FULL of local_ega.main.
+--
+-- psql --dbname lega -v ON_ERROR_STOP=1 -f 0003-job-state.sql
+
+BEGIN;
+
+SET search_path TO local_ega;
+
+DROP VIEW local_ega.jobs;
+DROP VIEW local_ega.errors;
+DROP INDEX IF EXISTS local_ega.main_ongoing_idx;
+DROP INDEX IF EXISTS local_ega.main_lookup_idx;
+DROP TRIGGER IF EXISTS main_updated ON local_ega.main;
+DROP FUNCTION IF EXISTS main_updated();
+DROP FUNCTION IF EXISTS local_ega.finish_verification(integer, json, varchar, bytea[]);
+
+-- Status machine
+-- Only the primary key is indexed: updating the other columns does not touch any index.
+-- No index on the status, not even a partial one, or the updates would not be HOT anymore.
+-- last_modified is set by the updates themselves (no trigger).
+CREATE TABLE local_ega.job_state (
+       job_id                 INTEGER NOT NULL REFERENCES local_ega.main(id) ON DELETE CASCADE, PRIMARY KEY(job_id),
+       status                 VARCHAR NOT NULL REFERENCES local_ega.status (code) DEFAULT 'INIT',
+       			      -- No "ON DELETE CASCADE": update to the new status in case the old one is deleted
+       occurences	      INTEGER NOT NULL DEFAULT 1,
+       last_modified          TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT clock_timestamp()
+) WITH (fillfactor = 50); -- room for the updated row versions in the same page
+
+
+-- Staging information, appended once the job is verified
+CREATE TABLE local_ega.job_staging (
+       job_id                      INTEGER NOT NULL REFERENCES local_ega.main(id) ON DELETE CASCADE, PRIMARY KEY(job_id),
+       staging_info                jsonb, -- JSON formatted blob
+       decrypted_payload_checksum  VARCHAR(128) NULL, -- NOT NULL, -- only sha256
+       created_at                  TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT clock_timestamp()
+);
+
+INSERT INTO local_ega.job_state (job_id, status, occurences, last_modified)
+SELECT id, status, occurences, last_modified FROM local_ega.main;
+
+INSERT INTO local_ega.job_staging (job_id, staging_info, decrypted_payload_checksum)
+SELECT id, staging_info::jsonb, decrypted_payload_checksum FROM local_ega.main
+WHERE staging_info IS NOT NULL OR decrypted_payload_checksum IS NOT NULL;
+
+ALTER TABLE local_ega.main
+      DROP COLUMN status,
+      DROP COLUMN occurences,
+      DROP COLUMN staging_info,
+      DROP COLUMN decrypted_payload_checksum,
+      DROP COLUMN last_modified;
+
+CREATE INDEX main_lookup_idx ON local_ega.main(correlation_id, inbox_path, inbox_user) INCLUDE (id);
+CREATE INDEX IF NOT EXISTS session_key_checksums_sha256_job_idx ON local_ega.session_key_checksums_sha256(job_id);
+
+-- Read-only: the functions below update the tables directly
+CREATE VIEW local_ega.jobs AS
+SELECT m.id,
+       m.correlation_id,
+       s.occurences,
+       m.inbox_user                      AS user_id,
+       m.inbox_path,
+       m.inbox_path_encrypted_checksum   AS inbox_checksum,
+       m.inbox_path_encrypted_checksum_type AS inbox_checksum_type,
+       g.staging_info,
+       s.status,
+       m.accession_id,
+       g.decrypted_payload_checksum,
+       s.last_modified
+FROM local_ega.main m
+INNER JOIN local_ega.job_state s ON s.job_id = m.id
+LEFT JOIN local_ega.job_staging g ON g.job_id = m.id;
+
+-- Insert into main
+CREATE OR REPLACE FUNCTION local_ega.insert_job(cid           local_ega.main.correlation_id%TYPE,
+			             inpath        local_ega.main.inbox_path%TYPE,
+			             uid           local_ega.main.inbox_user%TYPE,
+			             checksum      local_ega.main.inbox_path_encrypted_checksum%TYPE,
+			             checksum_type local_ega.main.inbox_path_encrypted_checksum_type%TYPE)
+RETURNS local_ega.main.id%TYPE AS $insert_job$
+    #variable_conflict use_column
+    DECLARE
+        new_id  local_ega.main.id%TYPE;
+    BEGIN
+
+	IF checksum IS NULL THEN
+	   -- If sha256 is NULL, then we create a new job all the time and 
+	   -- mark the other ongoing ones as canceled (ie not in error or completed state)
+	   UPDATE local_ega.job_state s SET status = 'CANCELED', last_modified = clock_timestamp()
+	          FROM local_ega.main m
+	          WHERE s.job_id = m.id AND
+		        m.correlation_id = cid AND
+	  	        m.inbox_path = inpath AND
+	  	        m.inbox_user = uid AND
+			s.status NOT IN ('ERROR', 'CANCELED', 'COMPLETED');
+	ELSE
+	   -- If checksum is NOT NULL, then we know more about that particular file.
+	   -- If a job is not CANCELED/ERROR, then we increment the occurences count and return -1 
+	   -- (ie not need to work), otherwise, we insert a new job.
+	   UPDATE local_ega.job_state s SET occurences = occurences + 1, last_modified = clock_timestamp()
+	          FROM local_ega.main m
+	          WHERE s.job_id = m.id AND
+		        m.correlation_id = cid AND
+	  	        m.inbox_path = inpath AND
+			m.inbox_user = uid AND
+	  	        m.inbox_path_encrypted_checksum = checksum AND
+	  	        m.inbox_path_encrypted_checksum_type = checksum_type AND
+			NOT (s.status = 'ERROR' OR s.status = 'CANCELED');
+	   IF FOUND THEN RETURN -1; END IF;
+	END IF;
+
+	-- Insert a new job
+	INSERT INTO local_ega.main (correlation_id,inbox_path,inbox_user,inbox_path_encrypted_checksum,inbox_path_encrypted_checksum_type)
+	VALUES(cid,inpath,uid,checksum,checksum_type)
+	RETURNING local_ega.main.id INTO new_id;
+
+	INSERT INTO local_ega.job_state (job_id) VALUES (new_id);
+
+	RETURN new_id;
+    END;
+$insert_job$ LANGUAGE plpgsql;
+
+-- Mark job as canceled
+CREATE OR REPLACE FUNCTION local_ega.cancel_job(cid           local_ega.main.correlation_id%TYPE,
+		   	             inpath        local_ega.main.inbox_path%TYPE,
+			             uid           local_ega.main.inbox_user%TYPE,
+		     	             checksum      local_ega.main.inbox_path_encrypted_checksum%TYPE,
+			             checksum_type local_ega.main.inbox_path_encrypted_checksum_type%TYPE)
+RETURNS void AS $cancel_job$
+    #variable_conflict use_column
+    BEGIN
+        UPDATE local_ega.job_state s SET status = 'CANCELED', last_modified = clock_timestamp()
+	       FROM local_ega.main m
+	       WHERE s.job_id = m.id AND
+		     m.correlation_id = cid AND
+		     m.inbox_path = inpath AND
+		     m.inbox_user = uid AND
+		     (CASE WHEN checksum is NULL
+			   THEN TRUE
+			   ELSE m.inbox_path_encrypted_checksum = checksum AND 
+				m.inbox_path_encrypted_checksum_type = checksum_type
+		      END) AND
+		     s.status NOT IN ('ERROR', 'CANCELED', 'COMPLETED');
+    END;
+$cancel_job$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION local_ega.has_status(fid local_ega.jobs.id%TYPE, statuses status[])
+RETURNS boolean AS $has_status$
+#variable_conflict use_column
+BEGIN
+   RETURN EXISTS(SELECT 1 FROM local_ega.job_state WHERE job_id = fid AND (status = ANY(statuses)));
+END;
+$has_status$ LANGUAGE plpgsql;
+
+-- Just showing the current/active errors
+CREATE VIEW local_ega.errors AS
+SELECT m.id,
+       m.correlation_id,
+       m.hostname,
+       m.error_type,
+       m.error_msg       AS message,
+       m.from_user,
+       s.last_modified   AS error_at
+FROM local_ega.main m
+INNER JOIN local_ega.job_state s ON s.job_id = m.id;
+
+CREATE OR REPLACE FUNCTION local_ega.insert_error(jid        local_ega.main.id%TYPE,
+                                       h          local_ega.main.hostname%TYPE,
+                                       etype      local_ega.main.error_type%TYPE,
+                                       msg        local_ega.main.error_msg%TYPE,
+                                       from_user  local_ega.main.from_user%TYPE)
+    RETURNS void AS $insert_error$
+    BEGIN
+       UPDATE local_ega.main
+              SET hostname = h,
+		  error_type = etype,
+		  error_msg = msg,
+		  from_user = insert_error.from_user
+	      WHERE id = jid;
+       UPDATE local_ega.job_state
+              SET status = 'ERROR',
+	          last_modified = clock_timestamp()
+	      WHERE job_id = jid;
+    END;
+$insert_error$ LANGUAGE plpgsql;
+
+-- Returns if the session key checksums are already found in the database
+CREATE OR REPLACE FUNCTION local_ega.has_session_keys_checksums_sha256(checksums bytea[]) --local_ega.session_key_checksums.session_key_checksum%TYPE []
+    RETURNS boolean AS $has_session_keys_checksums_sha256$
+    #variable_conflict use_column
+    BEGIN
+	RETURN EXISTS(SELECT 1
+                      FROM local_ega.session_key_checksums_sha256 sk 
+	              INNER JOIN local_ega.job_state f
+		      ON f.job_id = sk.job_id 
+		      WHERE (f.status <> 'ERROR' AND f.status <> 'CANCELED') AND -- no data-race on those values
+		      	    sk.session_key_checksum = ANY(checksums));
+    END;
+$has_session_keys_checksums_sha256$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION local_ega.finish_verification(jid           local_ega.main.id%TYPE,
+                                              info          local_ega.job_staging.staging_info%TYPE,
+                                              checksum      local_ega.job_staging.decrypted_payload_checksum%TYPE,
+                                              sk_checksums  bytea[])
+    RETURNS INTEGER AS $finish_verification$
+    #variable_conflict use_column
+    BEGIN
+	PERFORM 1 FROM local_ega.job_state
+	          WHERE job_id = jid AND NOT (status = 'CANCELED' OR status = 'ERROR' OR status = 'COMPLETED')
+		  FOR NO KEY UPDATE;
+	IF NOT FOUND THEN RETURN 1; END IF;
+
+	-- Keys used by jobs in error or canceled can be reused
+	DELETE FROM local_ega.session_key_checksums_sha256 sk
+	       USING local_ega.job_state m
+	       WHERE m.job_id = sk.job_id AND
+	             m.job_id <> jid AND
+		     (m.status = 'ERROR' OR m.status = 'CANCELED') AND
+		     sk.session_key_checksum = ANY(sk_checksums);
+
+	INSERT INTO local_ega.session_key_checksums_sha256(job_id,session_key_checksum)
+	       (SELECT DISTINCT jid AS job_id, t.session_key_checksum
+	          FROM (SELECT unnest(sk_checksums) AS session_key_checksum) AS t)
+	       ON CONFLICT DO NOTHING;
+
+	IF EXISTS(SELECT 1 FROM local_ega.session_key_checksums_sha256
+	                   WHERE session_key_checksum = ANY(sk_checksums) AND job_id <> jid) THEN
+	   DELETE FROM local_ega.session_key_checksums_sha256 WHERE job_id = jid;
+	   RETURN 2;
+	END IF;
+
+	INSERT INTO local_ega.job_staging (job_id, staging_info, decrypted_payload_checksum)
+	       VALUES (jid, info, checksum)
+	       ON CONFLICT (job_id) DO UPDATE SET staging_info = EXCLUDED.staging_info,
+	                                          decrypted_payload_checksum = EXCLUDED.decrypted_payload_checksum;
+	UPDATE local_ega.job_state
+	       SET status = 'VERIFIED',
+	           last_modified = clock_timestamp()
+	       WHERE job_id = jid;
+	RETURN 0;
+    END;
+$finish_verification$ LANGUAGE plpgsql;
+
+GRANT ALL PRIVILEGES ON local_ega.job_state, local_ega.job_staging, local_ega.jobs, local_ega.errors TO lega;
+
+COMMIT;
+
+ANALYZE local_ega.main;
+ANALYZE local_ega.job_state;
+ANALYZE local_ega.job_staging;
@@ -0,0 +1,217 @@
+-- Migration for the pipeline database (db.sql)
+--
+-- local_ega.job_state is partitioned by status: the ongoing jobs in job_state_active,
+-- the finished ones in job_state_terminal, partitioned again by ranges of job ids.
+-- The terminal partitions are created (and the old ones detached) by local_ega.maintain_partitions,
+-- run by ega-maintenance. The ones for the existing jobs are created here, with the default span:
+-- use the same [maintenance] span afterwards.
+--
+-- The jobs are blocked while it runs (job_state is copied).
+--
+-- psql --dbname lega -v ON_ERROR_STOP=1 -f 0004-job-state-partitions.sql
+
+BEGIN;
+
+SET search_path TO local_ega;
+
+DROP VIEW local_ega.jobs;
+DROP VIEW local_ega.errors;
+ALTER TABLE local_ega.job_state RENAME TO job_state_unpartitioned;
+
+-- Status machine
+-- Only the job id is indexed: updating the other columns does not touch any index.
+-- No index on the status, not even a partial one, or the updates would not be HOT anymore.
+-- last_modified is set by the updates themselves (no trigger).
+--
+-- Partitioned by status: the ongoing jobs are in a small partition, the hot queries only touch
+-- that one (the status is in their WHERE clause), however many jobs are archived.
+-- A job moves to the terminal partition when it completes, is canceled or fails
+-- (that update is a delete + insert, the others stay HOT).
+-- The terminal jobs are partitioned again by ranges of job ids (ie, by creation time),
+-- created ahead and detached when old by local_ega.maintain_partitions() (see ega-maintenance).
+-- No primary key: it would have to include the status, which would then be indexed.
+-- The job ids are unique anyway: one row per job, inserted by insert_job.
+CREATE TABLE local_ega.job_state (
+       job_id                 INTEGER NOT NULL REFERENCES local_ega.main(id) ON DELETE CASCADE,
+       status                 VARCHAR NOT NULL REFERENCES local_ega.status (code) DEFAULT 'INIT',
+       			      -- No "ON DELETE CASCADE": update to the new status in case the old one is deleted
+       occurences	      INTEGER NOT NULL DEFAULT 1,
+       last_modified          TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT clock_timestamp()
+) PARTITION BY LIST (status);
+CREATE INDEX job_state_job_idx ON local_ega.job_state(job_id); -- created on each partition
+
+CREATE TABLE local_ega.job_state_active PARTITION OF local_ega.job_state
+       FOR VALUES IN ('INIT', 'VERIFIED', 'BACKUP1', 'BACKUP2')
+       WITH (fillfactor = 50); -- room for the updated row versions in the same page
+
+CREATE TABLE local_ega.job_state_terminal PARTITION OF local_ega.job_state
+       FOR VALUES IN ('COMPLETED', 'ERROR', 'CANCELED')
+       PARTITION BY RANGE (job_id);
+-- Safety net, in case maintain_partitions() is late: it should stay empty
+CREATE TABLE local_ega.job_state_terminal_default PARTITION OF local_ega.job_state_terminal DEFAULT;
+
+-- Any other (new) status
+CREATE TABLE local_ega.job_state_other PARTITION OF local_ega.job_state DEFAULT
+       WITH (fillfactor = 50);
+
+
+INSERT INTO local_ega.job_state (job_id, status, occurences, last_modified)
+SELECT job_id, status, occurences, last_modified FROM local_ega.job_state_unpartitioned;
+
+DROP TABLE local_ega.job_state_unpartitioned;
+
+-- Read-only: the functions below update the tables directly
+CREATE VIEW local_ega.jobs AS
+SELECT m.id,
+       m.correlation_id,
+       s.occurences,
+       m.inbox_user                      AS user_id,
+       m.inbox_path,
+       m.inbox_path_encrypted_checksum   AS inbox_checksum,
+       m.inbox_path_encrypted_checksum_type AS inbox_checksum_type,
+       g.staging_info,
+       s.status,
+       m.accession_id,
+       g.decrypted_payload_checksum,
+       s.last_modified
+FROM local_ega.main m
+INNER JOIN local_ega.job_state s ON s.job_id = m.id
+LEFT JOIN local_ega.job_staging g ON g.job_id = m.id;
+
+-- Just showing the current/active errors
+CREATE VIEW local_ega.errors AS
+SELECT m.id,
+       m.correlation_id,
+       m.hostname,
+       m.error_type,
+       m.error_msg       AS message,
+       m.from_user,
+       s.last_modified   AS error_at
+FROM local_ega.main m
+INNER JOIN local_ega.job_state s ON s.job_id = m.id;
+
+CREATE OR REPLACE FUNCTION local_ega.finish_verification(jid           local_ega.main.id%TYPE,
+                                              info          local_ega.job_staging.staging_info%TYPE,
+                                              checksum      local_ega.job_staging.decrypted_payload_checksum%TYPE,
+                                              sk_checksums  bytea[])
+    RETURNS INTEGER AS $finish_verification$
+    #variable_conflict use_column
+    BEGIN
+	PERFORM 1 FROM local_ega.job_state
+	          WHERE job_id = jid AND NOT (status = 'CANCELED' OR status = 'ERROR' OR status = 'COMPLETED')
+		  FOR NO KEY UPDATE;
+	IF NOT FOUND THEN RETURN 1; END IF;
+
+	-- Keys used by jobs in error or canceled can be reused
+	DELETE FROM local_ega.session_key_checksums_sha256 sk
+	       USING local_ega.job_state m
+	       WHERE m.job_id = sk.job_id AND
+	             m.job_id <> jid AND
+		     (m.status = 'ERROR' OR m.status = 'CANCELED') AND
+		     sk.session_key_checksum = ANY(sk_checksums);
+
+	INSERT INTO local_ega.session_key_checksums_sha256(job_id,session_key_checksum)
+	       (SELECT DISTINCT jid AS job_id, t.session_key_checksum
+	          FROM (SELECT unnest(sk_checksums) AS session_key_checksum) AS t)
+	       ON CONFLICT DO NOTHING;
+
+	IF EXISTS(SELECT 1 FROM local_ega.session_key_checksums_sha256
+	                   WHERE session_key_checksum = ANY(sk_checksums) AND job_id <> jid) THEN
+	   DELETE FROM local_ega.session_key_checksums_sha256 WHERE job_id = jid;
+	   RETURN 2;
+	END IF;
+
+	INSERT INTO local_ega.job_staging (job_id, staging_info, decrypted_payload_checksum)
+	       VALUES (jid, info, checksum)
+	       ON CONFLICT (job_id) DO UPDATE SET staging_info = EXCLUDED.staging_info,
+	                                          decrypted_payload_checksum = EXCLUDED.decrypted_payload_checksum;
+	UPDATE local_ega.job_state
+	       SET status = 'VERIFIED',
+	           last_modified = clock_timestamp()
+	       WHERE job_id = jid AND
+	             status NOT IN ('ERROR', 'CANCELED', 'COMPLETED'); -- only the active partition
+	RETURN 0;
+    END;
+$finish_verification$ LANGUAGE plpgsql;
+
+
+-- Run regularly, by ega-maintenance:
+--  * creates the partitions of the next job ids, ahead of the jobs creation,
+--    so that job_state_terminal_default stays empty (its rows are moved otherwise).
+--  * if keep is not NULL, detaches the partitions where all the jobs are finished,
+--    and were last modified more than keep ago. They are renamed job_state_archive_<from>_<to>,
+--    can be dumped and dropped, and are not in the jobs view anymore.
+--    Their session keys checksums are kept (finish_verification still refuses them).
+-- span must stay the same from one call to the next.
+-- SECURITY DEFINER: lega does not own the tables.
+CREATE FUNCTION local_ega.maintain_partitions(span  INTEGER  DEFAULT 1000000,
+                                              ahead INTEGER  DEFAULT 2,
+                                              keep  INTERVAL DEFAULT NULL)
+    RETURNS TABLE(action TEXT, relation TEXT) AS $maintain_partitions$
+    DECLARE
+        last_id  INTEGER;
+        first_id INTEGER;
+        lo       INTEGER;
+        hi       INTEGER;
+        rel      TEXT;
+        part     RECORD;
+        recent   BOOLEAN;
+    BEGIN
+        SELECT coalesce(max(id), 0) INTO last_id FROM local_ega.main;
+        -- Start lower if the default partition was used
+        SELECT least(last_id, min(job_id)) INTO first_id FROM local_ega.job_state_terminal_default;
+
+        FOR n IN (first_id / span) .. (last_id / span + ahead) LOOP
+            lo := n * span;
+            hi := lo + span;
+            rel := format('job_state_terminal_%s_%s', lo, hi);
+            CONTINUE WHEN to_regclass(rel) IS NOT NULL;
+            EXECUTE format('CREATE TABLE %I (LIKE local_ega.job_state_terminal INCLUDING DEFAULTS)', rel);
+            EXECUTE format('WITH moved AS (DELETE FROM local_ega.job_state_terminal_default '
+                           '               WHERE job_id >= %s AND job_id < %s RETURNING *) '
+                           'INSERT INTO %I SELECT * FROM moved', lo, hi, rel);
+            EXECUTE format('ALTER TABLE local_ega.job_state_terminal ATTACH PARTITION %I FOR VALUES FROM (%s) TO (%s)',
+                           rel, lo, hi);
+            action := 'created'; relation := rel;
+            RETURN NEXT;
+        END LOOP;
+
+        IF keep IS NULL THEN RETURN; END IF;
+
+        FOR part IN SELECT c.relname, m[1]::INTEGER AS lo, m[2]::INTEGER AS hi
+                    FROM pg_inherits i
+                    INNER JOIN pg_class c ON c.oid = i.inhrelid,
+                    LATERAL regexp_match(c.relname, '^job_state_terminal_(\d+)_(\d+)$') AS m
+                    WHERE i.inhparent = 'local_ega.job_state_terminal'::regclass AND
+                          m IS NOT NULL -- not the default partition
+                    ORDER BY 2
+        LOOP
+            -- Skip the ranges with new jobs to come, or ongoing ones: they would end up in the default partition
+            EXIT WHEN part.hi > last_id;
+            CONTINUE WHEN EXISTS(SELECT 1 FROM local_ega.job_state
+                                 WHERE job_id >= part.lo AND job_id < part.hi AND
+                                       status NOT IN ('ERROR', 'CANCELED', 'COMPLETED'));
+            EXECUTE format('SELECT EXISTS(SELECT 1 FROM %I WHERE last_modified > now() - $1)', part.relname)
+                    INTO recent USING keep;
+            CONTINUE WHEN recent;
+            rel := format('job_state_archive_%s_%s', part.lo, part.hi);
+            EXECUTE format('ALTER TABLE local_ega.job_state_terminal DETACH PARTITION %I', part.relname);
+            EXECUTE format('ALTER TABLE %I RENAME TO %I', part.relname, rel);
+            action := 'detached'; relation := rel;
+            RETURN NEXT;
+        END LOOP;
+    END;
+$maintain_partitions$ LANGUAGE plpgsql SECURITY DEFINER SET search_path = local_ega, pg_temp;
+
+REVOKE ALL ON FUNCTION local_ega.maintain_partitions(INTEGER, INTEGER, INTERVAL) FROM PUBLIC;
+
+GRANT EXECUTE ON FUNCTION local_ega.maintain_partitions(INTEGER, INTEGER, INTERVAL) TO lega;
+
+-- Partitions for the existing finished jobs (moved out of the default partition)
+SELECT * FROM local_ega.maintain_partitions();
+
+GRANT ALL PRIVILEGES ON local_ega.job_state, local_ega.jobs, local_ega.errors TO lega;
+
+COMMIT;
+
+ANALYZE local_ega.job_state;
@@ -0,0 +1,99 @@
+-- Migration for the pipeline database (db.sql)
+--
+-- insert_job and cancel_job notify the job_canceled channel, with the id of each job they cancel,
+-- so that the workers running it stop.
+--
+-- psql --dbname lega -v ON_ERROR_STOP=1 -f 0005-job-canceled-notify.sql
+
+BEGIN;
+
+SET search_path TO local_ega;
+
+-- Insert into main
+CREATE OR REPLACE FUNCTION local_ega.insert_job(cid           local_ega.main.correlation_id%TYPE,
+			             inpath        local_ega.main.inbox_path%TYPE,
+			             uid           local_ega.main.inbox_user%TYPE,
+			             checksum      local_ega.main.inbox_path_encrypted_checksum%TYPE,
+			             checksum_type local_ega.main.inbox_path_encrypted_checksum_type%TYPE)
+RETURNS local_ega.main.id%TYPE AS $insert_job$
+    #variable_conflict use_column
+    DECLARE
+        new_id       local_ega.main.id%TYPE;
+        canceled_id  local_ega.main.id%TYPE;
+    BEGIN
+
+	IF checksum IS NULL THEN
+	   -- If sha256 is NULL, then we create a new job all the time and 
+	   -- mark the other ongoing ones as canceled (ie not in error or completed state)
+	   FOR canceled_id IN
+	       UPDATE local_ega.job_state s SET status = 'CANCELED', last_modified = clock_timestamp()
+	              FROM local_ega.main m
+	              WHERE s.job_id = m.id AND
+		            m.correlation_id = cid AND
+	  	            m.inbox_path = inpath AND
+	  	            m.inbox_user = uid AND
+			    s.status NOT IN ('ERROR', 'CANCELED', 'COMPLETED')
+	              RETURNING s.job_id
+	   LOOP
+	       PERFORM pg_notify('job_canceled', canceled_id::text); -- stops the running workers
+	   END LOOP;
+	ELSE
+	   -- If checksum is NOT NULL, then we know more about that particular file.
+	   -- If a job is not CANCELED/ERROR, then we increment the occurences count and return -1 
+	   -- (ie not need to work), otherwise, we insert a new job.
+	   UPDATE local_ega.job_state s SET occurences = occurences + 1, last_modified = clock_timestamp()
+	          FROM local_ega.main m
+	          WHERE s.job_id = m.id AND
+		        m.correlation_id = cid AND
+	  	        m.inbox_path = inpath AND
+			m.inbox_user = uid AND
+	  	        m.inbox_path_encrypted_checksum = checksum AND
+	  	        m.inbox_path_encrypted_checksum_type = checksum_type AND
+			NOT (s.status = 'ERROR' OR s.status = 'CANCELED');
+	   IF FOUND THEN RETURN -1; END IF;
+	END IF;
+
+	-- Insert a new job
+	INSERT INTO local_ega.main (correlation_id,inbox_path,inbox_user,inbox_path_encrypted_checksum,inbox_path_encrypted_checksum_type)
+	VALUES(cid,inpath,uid,checksum,checksum_type)
+	RETURNING local_ega.main.id INTO new_id;
+
+	INSERT INTO local_ega.job_state (job_id) VALUES (new_id);
+
+	RETURN new_id;
+    END;
+$insert_job$ LANGUAGE plpgsql;
+
+-- Mark job as canceled
+CREATE OR REPLACE FUNCTION local_ega.cancel_job(cid           local_ega.main.correlation_id%TYPE,
+		   	             inpath        local_ega.main.inbox_path%TYPE,
+			             uid           local_ega.main.inbox_user%TYPE,
+		     	             checksum      local_ega.main.inbox_path_encrypted_checksum%TYPE,
+			             checksum_type local_ega.main.inbox_path_encrypted_checksum_type%TYPE)
+RETURNS void AS $cancel_job$
+    #variable_conflict use_column
+    DECLARE
+        canceled_id  local_ega.main.id%TYPE;
+    BEGIN
+        FOR canceled_id IN
+            UPDATE local_ega.job_state s SET status = 'CANCELED', last_modified = clock_timestamp()
+	           FROM local_ega.main m
+	           WHERE s.job_id = m.id AND
+		         m.correlation_id = cid AND
+		         m.inbox_path = inpath AND
+		         m.inbox_user = uid AND
+		         (CASE WHEN checksum is NULL
+			       THEN TRUE
+			       ELSE m.inbox_path_encrypted_checksum = checksum AND 
+				    m.inbox_path_encrypted_checksum_type = checksum_type
+		          END) AND
+		         s.status NOT IN ('ERROR', 'CANCELED', 'COMPLETED')
+	           RETURNING s.job_id
+        LOOP
+            -- Sent on commit: the workers running that job stop (see lega.utils.db.CancellationWatcher)
+            PERFORM pg_notify('job_canceled', canceled_id::text);
+        END LOOP;
+    END;
+$cancel_job$ LANGUAGE plpgsql;
+
+COMMIT;
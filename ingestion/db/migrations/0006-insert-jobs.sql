@@ -0,0 +1,27 @@
+-- Migration for the pipeline database (db.sql)
+--
+-- insert_jobs: the batched version of insert_job, for the dispatcher.
+--
+-- psql --dbname lega -v ON_ERROR_STOP=1 -f 0006-insert-jobs.sql
+
+BEGIN;
+
+SET search_path TO local_ega;
+
+-- Insert several jobs in one call (ie one round trip), as insert_job would, one after the other.
+-- The arrays have the same length, one element per job. Returns the ids in the same order (or -1).
+CREATE FUNCTION local_ega.insert_jobs(cids           TEXT[],
+			              inpaths        TEXT[],
+			              uids           TEXT[],
+			              checksums      TEXT[],
+			              checksum_types local_ega.checksum_algorithm[])
+RETURNS SETOF local_ega.main.id%TYPE AS $insert_jobs$
+    BEGIN
+	FOR i IN 1 .. coalesce(array_length(cids, 1), 0) LOOP
+	    -- in order: the same file can come twice in a batch
+	    RETURN NEXT local_ega.insert_job(cids[i], inpaths[i], uids[i], checksums[i], checksum_types[i]);
+	END LOOP;
+    END;
+$insert_jobs$ LANGUAGE plpgsql;
+
+COMMIT;
@@ -0,0 +1,41 @@
+-- Migration for the pipeline database (db.sql)
+--
+-- job_payloads: the content of the internal messages, with [broker] claim_check.
+--
+-- psql --dbname lega -v ON_ERROR_STOP=1 -f 0007-job-payloads.sql
+
+BEGIN;
+
+SET search_path TO local_ega;
+
+-- Claim checks: the content of the messages between the LocalEGA workers.
+-- With [broker] claim_check, a worker appends a new version here and the message only carries
+-- the job id and that version (see lega.utils.amqp.publish). A version is never updated:
+-- the workers cache them. They are purged once the job is finished (see ega-maintenance).
+CREATE TABLE local_ega.job_payloads (
+       job_id      INTEGER NOT NULL REFERENCES local_ega.main(id) ON DELETE CASCADE,
+       version     INTEGER NOT NULL,
+       data        jsonb NOT NULL,
+       created_at  TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT clock_timestamp(),
+       PRIMARY KEY(job_id, version)
+);
+
+-- Append a new version of the message content of a job, and return its number.
+-- A job is handled by one worker at a time: a concurrent insert fails on the primary key.
+CREATE FUNCTION local_ega.insert_payload(jid   local_ega.main.id%TYPE,
+                                         info  local_ega.job_payloads.data%TYPE)
+RETURNS local_ega.job_payloads.version%TYPE AS $insert_payload$
+    DECLARE
+        new_version  local_ega.job_payloads.version%TYPE;
+    BEGIN
+	INSERT INTO local_ega.job_payloads (job_id, version, data)
+	       SELECT jid, coalesce(max(p.version), 0) + 1, info
+	       FROM local_ega.job_payloads p WHERE p.job_id = jid
+	       RETURNING version INTO new_version;
+	RETURN new_version;
+    END;
+$insert_payload$ LANGUAGE plpgsql;
+
+GRANT ALL PRIVILEGES ON local_ega.job_payloads TO lega;
+
+COMMIT;
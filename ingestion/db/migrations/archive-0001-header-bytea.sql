@@ -0,0 +1,12 @@
+-- Migration for the archive database (archive-db.sql)
+--
+-- The Crypt4GH headers are stored as raw bytes (bytea), instead of hex text.
+--
+-- psql --dbname lega -v ON_ERROR_STOP=1 -f archive-0001-header-bytea.sql
+
+BEGIN;
+
+ALTER TABLE local_ega.main
+      ALTER COLUMN header TYPE BYTEA USING decode(header, 'hex');
+
+COMMIT;
@@ -5,86 +5,160 @@ import logging
 from functools import partial
 import os
 import io
-import shutil
 import hashlib
+import mmap
+from concurrent.futures import ThreadPoolExecutor
 from pathlib import Path
 
 from .conf import CONF
-from .utils import exceptions, db, name2fs, add_prefix, mkdirs
+from .conf.logging import timer
+from .utils import exceptions, db, storage, name2fs, add_prefix
 from .utils.amqp import consume, publish
 
 LOG = logging.getLogger(__name__)
 
+
+def copy_and_hash(source_path, storages, name, md, buffer_size, pool):
+    """Copy the source to ``name`` in all the storages, updating ``md`` on the way.
+
+    The source is read only once: each chunk is written to every
+    destination concurrently, in the ``pool`` threads, while the next
+    chunk is read (we alternate between 2 buffers).
+    The writers are committed (closed) at the end, or aborted on error,
+    including those already started if another one fails to start.
+    Returns the number of bytes copied."""
+    bufs = (bytearray(buffer_size), bytearray(buffer_size))
+    writers = []
+    pending = []
+    size = 0
+    try:
+        for storage in storages:
+            writers.append(storage.put(name))
+        with open(source_path, 'rb', buffering=0) as src:
+            os.posix_fadvise(src.fileno(), 0, 0, os.POSIX_FADV_SEQUENTIAL)
+            i = 0
+            while True:
+                buf = bufs[i % 2]
+                i += 1
+                n = src.readinto(buf)  # the other buffer is still being written
+                for f in pending:
+                    f.result()
+                pending = []
+                if not n:
+                    break
+                db.raise_if_canceled()  # aborts the writers
+                chunk = memoryview(buf)[:n]
+                pending = [pool.submit(w.write, chunk) for w in writers]
+                md.update(chunk)
+                size += n
+        for f in [pool.submit(w.close) for w in writers]:
+            f.result()
+    except Exception:
+        for f in pending:
+            f.exception()  # wait, the first error is already raised
+        for w in writers:
+            try:
+                w.abort()
+            except Exception as e:
+                LOG.error('Abort failed: %r', e)
+        raise
+    return size
+
+
+def _compare(md1, md_payload, destination_path):
+    md2 = md_payload['value']
+    if(md1 != md2):
+        LOG.error('Backup failed: different checksums for the payloads')
+        LOG.error('* md1: %s', md1)
+        LOG.error('* md2: %s', md2)
+        raise exceptions.ChecksumsNotMatching(destination_path, md1, md2)
+
+
 @db.check_canceled
-def work(destination_fs, data):
-    """Backup the pointed file in 2 backend stores."""
+def work(storages, pool, buffer_size, verify, status, data):
+    """Backup the pointed file in all the configured backend stores, at once."""
     job_id = int(data['job_id'])
     LOG.info('Working on job id %s with data %s', job_id, data)
     LOG.info('Accession id: %s', data['accession_id'])
 
     source_path = data['staged_path']
     destination_name = name2fs(data['accession_id'])
-    destination_path = destination_fs(destination_name)
+    destination_paths = [storage.location(destination_name) for storage in storages]
     md_payload = data['payload_checksum']
 
-    LOG.info('Backing up %s to %s', source_path, destination_path)
+    LOG.info('Backing up %s to %s', source_path, ', '.join(destination_paths))
     LOG.info('Payload checksum: %s', md_payload)
 
-    # Create parent directories
-    mkdirs(destination_path)
-
-    # Copy the source content to the destination
-    shutil.copyfile(source_path, destination_path)
+    # Copy the source content to the destinations, hashing it on the way
+    md = hashlib.new(md_payload['type'])
+    with timer('copy'):
+        target_size = copy_and_hash(source_path, storages, destination_name, md, buffer_size, pool)
 
     # Easy check: the sizes
-    target_size = os.stat(destination_path).st_size
     if( target_size != data['target_size']):
         raise ValueError('Backup failed: files are of different sizes')
 
-    # Re-open to compare checksums
-    md = hashlib.new(md_payload['type'])
-
-    with open(destination_path, 'rb') as arfile:
-        while True:
-            d = arfile.read(1024)
-            if not d:
-                break
-            md.update(d)
-
-    md1 = md.hexdigest()
-    md2 = md_payload['value']
+    _compare(md.hexdigest(), md_payload, source_path)
 
-    if(md1 != md2):
-        LOG.error('Backup failed: different checksums for the payloads')
-        LOG.error('* md1: %s', md1)
-        LOG.error('* md2: %s', md2)
-        raise exceptions.ChecksumsNotMatching(destination_path, md1, md2)
+    # Optionally, re-read what landed in storage, for each copy
+    if verify:
+        def check(storage):
+            size = storage.stat(destination_name)
+            if size != target_size:
+                raise ValueError(f'Backup failed: {storage.location(destination_name)} has size {size}')
+            _compare(storage.verify(destination_name, md_payload['type']), md_payload, storage.location(destination_name))
+        with timer('verify'):
+            for f in [pool.submit(check, storage) for storage in storages]:
+                f.result()
 
     # All good, record the paths into the (potentially already existing) list
     data['vault_name'] = destination_name
-    paths = data.get('mounted_vault_paths', [])
-    if paths:
-        paths.append(destination_path)
-    else:
-        data['mounted_vault_paths'] = [destination_path]
+    data.setdefault('mounted_vault_paths', []).extend(destination_paths)
 
     LOG.debug("Reply message: %s", data)
 
     # Set DB status
-    routing_key = CONF.get('DEFAULT', 'routing_key')
-    db.set_status(job_id, routing_key.upper())  # the routing key is the database status
+    db.set_status(job_id, status)
 
     # Publish the answer
     publish(data)
 
-def main():
+def _destination_sections():
+    """``[destination.N]`` sections, in order, if any. Else ``[destination]``."""
+    sections = [s for s in CONF.sections() if s.startswith('destination.')]
+    if not sections:
+        return ['destination']
+    return sorted(sections, key=lambda s: int(s.split('.', 1)[1]))
+
+
+def setup(status=None):
+    """Configure the worker, and return its work function."""
 
-    # Destination
-    destination_prefix = CONF.get('destination', 'location')
-    def destination_fs(path):
-        return os.path.join(destination_prefix, path.strip('/') )
+    buffer_size = CONF.getint('destination', 'buffer_size', fallback=4 * 1024 * 1024)
+    buffer_size = max(mmap.PAGESIZE, buffer_size - buffer_size % mmap.PAGESIZE)  # aligned for O_DIRECT
+    verify = CONF.getboolean('destination', 'verify', fallback=False)
 
-    do_work = partial(work, destination_fs)
+    # Destinations: a POSIX path or s3://bucket/prefix
+    # With several [destination.N] sections, the payload is read once and written to all of them
+    sections = _destination_sections()
+    storages = [storage.from_config(section, buffer_size) for section in sections]
+    LOG.info('Backing up to %s', ', '.join(CONF.get(section, 'location') for section in sections))
+
+    # Stop the jobs canceled while they run
+    if CONF.getboolean('DEFAULT', 'cancel_notifications', fallback=True):
+        db.start_cancellation_watcher()
+
+    workers = CONF.getint('broker', 'workers', fallback=1)
+    pool = ThreadPoolExecutor(max_workers=len(sections) * workers, thread_name_prefix='writer')
+
+    if status is None:  # by default, the routing key is the database status
+        status = CONF.get('DEFAULT', 'status', fallback=CONF.get('DEFAULT', 'routing_key').upper())
+
+    return partial(work, storages, pool, buffer_size, verify, status)
+
+
+def main():
+    do_work = setup()
 
     # upstream link configured in local broker
     os.umask(0o077)  # no group nor world permissions
@@ -21,8 +21,7 @@ def work(inbox_fs, data):
     LOG.info('Working on job id %s with data %s', job_id, data)
 
     # Not checking for job cancellation 
-    # Marking job as complete
-    db.set_status(job_id, 'COMPLETED')  # maybe add more stuff to db that was in message
+    # Not marking the job as complete: save2db does, once it consumed its last message (see maintenance.purge_payloads)
 
     # Delete the staged file
     staged_path = data['staged_path']
@@ -53,15 +52,18 @@ def work(inbox_fs, data):
     # Publish the answer
     publish(data)
 
-def main():
+def setup():
+    """Configure the worker, and return its work function."""
 
     inbox_prefix = CONF.get('inbox', 'location', raw=True)
     def inbox_fs(user, path):
         return os.path.join(inbox_prefix % user, path.strip('/') )
 
-    do_work = partial(work, inbox_fs)
+    return partial(work, inbox_fs)
+
 
-    consume(do_work)
+def main():
+    consume(setup())
 
 
 # if __name__ == '__main__':
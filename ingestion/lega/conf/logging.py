@@ -1,40 +1,84 @@
 # -*- coding: utf-8 -*-
-"""Handling correlation id across all logs."""
+"""Handling the job context (correlation id, job id, timers) across all logs.
+
+The context is held in a context variable, so that each thread sees
+its own job.
+"""
 
 from logging import Logger
+from contextvars import ContextVar
+from contextlib import contextmanager, nullcontext
+import time
+
+
+class JobContext():
+    """Information about the job being processed."""
+
+    def __init__(self, correlation_id=None, job_id=None):
+        """Initialize the context for a job."""
+        self.correlation_id = correlation_id
+        self.job_id = job_id
+        self.timers = {}
+
+    @contextmanager
+    def timer(self, stage):
+        """Record the time spent in ``stage``, in seconds."""
+        start = time.monotonic()
+        try:
+            yield
+        finally:
+            self.timers[stage] = self.timers.get(stage, 0) + time.monotonic() - start
+
+
+_job = ContextVar('job', default=None)
+
 
+def current_job():
+    """Return the context of the job being processed, or None."""
+    return _job.get()
 
-class _wrapper():
-    """Wrapper class for the correlation id."""
 
-    value = None
+def get_correlation_id():
+    """Return the correlation id of the job being processed, or None."""
+    job = _job.get()
+    return job.correlation_id if job else None
 
-    def get(self):
-        return self.value
 
-    def set(self, v):
-        self.value = v
+def timer(stage):
+    """Record the time spent in ``stage``, for the current job (if any)."""
+    job = _job.get()
+    return job.timer(stage) if job else nullcontext()
 
 
-_cid = _wrapper()
+@contextmanager
+def job_context(correlation_id=None, job_id=None):
+    """Set up a new job context, and restore the previous one on exit."""
+    job = JobContext(correlation_id, job_id=job_id)
+    token = _job.set(job)
+    try:
+        yield job
+    finally:
+        _job.reset(token)
 
 
 class LEGALogger(Logger):
     """Logger with a correlation id injected in the log records.
 
     If the correlation id is specified in the ``extra`` dictionary, we
-    inject its value. If not, we try to find it in the local variables
-    of the calling frames. If none of the previous cases happen, we
-    use the value '--------'.
+    inject its value. If not, we use the one from the current job
+    context. If there is no current job, we use the value '--------'.
 
+    The job id is injected the same way.
     """
 
     def makeRecord(self, *args, **kwargs):
-        """Specialized record with correlation_id."""
+        """Specialized record with correlation_id and job_id."""
         rv = super(LEGALogger, self).makeRecord(*args, **kwargs)
 
-        # Adding correlation_id if not already there
-        if 'correlation_id' in rv.__dict__.keys():
-            return rv
-        rv.__dict__['correlation_id'] = _cid.get() or '--------'
+        job = _job.get()
+        # Adding correlation_id and job_id if not already there
+        if 'correlation_id' not in rv.__dict__:
+            rv.__dict__['correlation_id'] = (job and job.correlation_id) or '--------'
+        if 'job_id' not in rv.__dict__:
+            rv.__dict__['job_id'] = (job and job.job_id) or '-'
         return rv
@@ -14,9 +14,10 @@ The messages are of the following types:
 """
 
 import logging
+from functools import partial
 
 from .conf import CONF
-from .conf.logging import _cid
+from .conf.logging import get_correlation_id
 from .utils import db, exceptions, get_sha256
 from .utils.amqp import consume, publish
 
@@ -27,7 +28,7 @@ def work(data):
 
     LOG.info('Working on %s', data)
 
-    correlation_id = _cid.get()
+    correlation_id = get_correlation_id()
     # should be set
     if not correlation_id:
         raise exceptions.InvalidBrokerMessage('Missing correlation_id. We should have one already set')
@@ -59,7 +60,7 @@ def work(data):
         # correlation_id fetched internally
         db.cancel_job(data['filepath'],
                       data['user'],
-                      encrypted_sha256_checksum=get_sha256(data.get('encrypted_checksums')))
+                      encrypted_checksums=data.get('encrypted_checksums'))
 
     elif job_type == 'heartbeat':
 
@@ -70,36 +71,11 @@ def work(data):
         
         LOG.info('Receiving an accession id (correlation_id %s)', correlation_id)
 
-        filepath = data.get('filepath')
-        user = data.get('user')
-        decrypted_sha256 = get_sha256(data.get('decrypted_checksums',[]))
-        accession_id = data.get('accession_id')
-
-        # All fields should be there
-        if (filepath is None or
-            user is None or
-            decrypted_sha256 is None or
-            accession_id is None):
-            raise exceptions.InvalidBrokerMessage('Invalid accession message from CentralEGA')
+        filepath, user, decrypted_sha256, accession_id = _accession(data)
 
         # Find the relevant job. Crash if parameters not there
         job = db.find_job(filepath, user, decrypted_sha256)
-        
-        if job == None:
-            LOG.error('No running job for correlation_id %s', correlation_id)
-            raise exceptions.RejectMessage(f'No running job for correlation_id {correlation_id}'
-                                           f' to associate with Accession ID {accession_id}')
-
-        job_id, staging_info = job
-        staging_info['accession_id'] = accession_id
-        # keep the type, it is used by save2db
-        LOG.info('Found job id %s for correlation_id %s and accession_id %s', job_id, correlation_id, accession_id)
-
-        # Sanity check or crash
-        assert staging_info['job_id'] == job_id, "Eh? Not the same job_id?"
-        assert staging_info['filepath'] == filepath, "Eh? Not the same filepath?"
-        assert staging_info['user'] == user, "Eh? Not the same user?"
-        assert get_sha256(staging_info['decrypted_checksums']) == decrypted_sha256, "Eh? Not the same decrypted sha256 checksum?"
+        staging_info = _staging_info(job, correlation_id, filepath, user, decrypted_sha256, accession_id)
 
         # Just record it in the pipeline db
         # db.set_accession_id(job_id, accession_id)
@@ -123,8 +99,130 @@ def work(data):
     
 
 
+def _accession(data):
+    """The file, user, decrypted sha256 checksum and accession id of an accession message."""
+    filepath = data.get('filepath')
+    user = data.get('user')
+    decrypted_sha256 = get_sha256(data.get('decrypted_checksums',[]))
+    accession_id = data.get('accession_id')
+
+    # All fields should be there
+    if (filepath is None or
+        user is None or
+        decrypted_sha256 is None or
+        accession_id is None):
+        raise exceptions.InvalidBrokerMessage('Invalid accession message from CentralEGA')
+    return filepath, user, decrypted_sha256, accession_id
+
+
+def _staging_info(job, correlation_id, filepath, user, decrypted_sha256, accession_id):
+    """The message for the job found for an accession id, with that accession id."""
+    if job == None:
+        LOG.error('No running job for correlation_id %s', correlation_id)
+        raise exceptions.RejectMessage(f'No running job for correlation_id {correlation_id}'
+                                       f' to associate with Accession ID {accession_id}')
+
+    job_id, staging_info = job
+    staging_info['accession_id'] = accession_id
+    # keep the type, it is used by save2db
+    LOG.info('Found job id %s for correlation_id %s and accession_id %s', job_id, correlation_id, accession_id)
+
+    # Sanity check or crash
+    assert staging_info['job_id'] == job_id, "Eh? Not the same job_id?"
+    assert staging_info['filepath'] == filepath, "Eh? Not the same filepath?"
+    assert staging_info['user'] == user, "Eh? Not the same user?"
+    assert get_sha256(staging_info['decrypted_checksums']) == decrypted_sha256, "Eh? Not the same decrypted sha256 checksum?"
+    return staging_info
+
+
+def batchable(data):
+    """Ingestion messages can be dispatched in batches."""
+    return data.get('type') == 'ingest' and 'filepath' in data and 'user' in data
+
+
+def _dispatch(data, job_id, routing_key):
+    data['job_id'] = job_id
+    LOG.info('Publish job %d', job_id)
+    publish(data, routing_key=routing_key)  # will use the same correlation_id
+
+
+def work_batch(batch):
+    """Dispatch several ingestion jobs, inserted in one database call.
+
+    The jobs are published one by one, each in its message's context (see amqp.consume)."""
+    LOG.info('Dispatching %d ingestion jobs', len(batch))
+    job_ids = db.insert_jobs([(correlation_id, data['filepath'], data['user'], data.get('encrypted_checksums'))
+                              for correlation_id, data in batch])
+    routing_key = CONF.get('DEFAULT', 'ingest_routing_key', fallback='ingest')
+    remaining = []
+    for (correlation_id, data), job_id in zip(batch, job_ids):
+        if job_id == -1:  # no need to work
+            LOG.warning('Already ongoing in another message', extra={'correlation_id': correlation_id})
+            remaining.append(None)
+            continue
+        remaining.append(partial(_dispatch, data, job_id, routing_key))
+    return remaining
+
+
+async def work_async(data):
+    """As ``work``, with the asyncio runtime (see utils.aio)."""
+    from .utils import aio
+
+    LOG.info('Working on %s', data)
+
+    correlation_id = get_correlation_id()
+    if not correlation_id:
+        raise exceptions.InvalidBrokerMessage('Missing correlation_id. We should have one already set')
+
+    job_type = data.get('type', None)
+    if job_type is None:
+        raise exceptions.InvalidBrokerMessage('Missing job type: Invalid message')
+
+    if job_type == 'ingest':
+        LOG.info('Dispatching an ingestion job for correlation_id %s', correlation_id)
+        job_id = await aio.insert_job(data['filepath'],
+                                      data['user'],
+                                      encrypted_checksums=data.get('encrypted_checksums'))
+        if job_id == -1:  # no need to work
+            LOG.warning('Already ongoing in another message')
+            return
+        data['job_id'] = job_id
+        LOG.info('Publish job %d', job_id)
+        await aio.publish(data, routing_key=CONF.get('DEFAULT', 'ingest_routing_key', fallback='ingest'))
+
+    elif job_type == 'cancel':
+        LOG.info('Canceling job for correlation_id %s', correlation_id)
+        await aio.cancel_job(data['filepath'],
+                             data['user'],
+                             encrypted_checksums=data.get('encrypted_checksums'))
+
+    elif job_type == 'heartbeat':
+        LOG.info('Checking heartbeat for correlation_id %s', correlation_id)
+        raise NotImplementedError('Heartbeat not implemented yet')
+
+    elif job_type == 'accession':
+        LOG.info('Receiving an accession id (correlation_id %s)', correlation_id)
+        filepath, user, decrypted_sha256, accession_id = _accession(data)
+        job = await aio.find_job(filepath, user, decrypted_sha256)
+        staging_info = _staging_info(job, correlation_id, filepath, user, decrypted_sha256, accession_id)
+        await aio.publish(staging_info, routing_key=CONF.get('DEFAULT', 'accession_routing_key', fallback='accession'))
+
+    elif job_type == 'mapping':
+        LOG.info('Receiving a mapping (correlation_id %s)', correlation_id)
+        data.pop('type', None)
+        await aio.publish(data, routing_key=CONF.get('DEFAULT', 'mapping_routing_key', fallback='save2db'))
+
+    else:
+        raise exceptions.RejectMessage(f'Invalid operation: {job_type}')
+
+
 def main():
-    consume(work)
+    if CONF.get('broker', 'runtime', fallback='threads') == 'asyncio':
+        from .utils import aio
+        aio.consume(work_async)
+        return
+    # With [broker] batch_size > 1, the ingestion messages are dispatched in batches
+    consume(work, work_batch=work_batch, batchable=batchable)
 
 # if __name__ == '__main__':
 #     main()
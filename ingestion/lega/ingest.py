@@ -14,13 +14,19 @@ import logging
 from functools import partial
 import io
 import os
+import errno
 import hashlib
 import time
+import queue
+import threading
+from collections import deque
+from concurrent.futures import ThreadPoolExecutor
 
-from crypt4gh.lib import body_decrypt, body_decrypt_parts
+from crypt4gh.lib import body_decrypt, body_decrypt_parts, decrypt_block, CIPHER_SEGMENT_SIZE
 from crypt4gh.header import deconstruct, parse
 
 from .conf import CONF
+from .conf.logging import timer
 from .utils import exceptions, db, key, clean_message, name2fs, add_prefix, mkdirs
 from .utils.amqp import consume, publish
 
@@ -30,7 +36,7 @@ LOG = logging.getLogger(__name__)
 # This is the minimal implementation: read, readinto, and seek.
 class VerifyPayloadFile():
     """IO reader to read a byte stream from a source file and tee-ing to:
-    * copy the bytes to a destination file
+    * copy the bytes to a destination file (if any)
     * checksum the stream
     * decrypt the stream
     """
@@ -44,24 +50,289 @@ class VerifyPayloadFile():
     def seek(self, offset, whence):
         self.src.seek(offset, whence)
 
+    def _tee(self, data):
+        self.md.update(data)
+        if self.dst is not None:
+            self.dst.write(data)
+        self.target_size += len(data)
+
     def read(self, size=-1):
         if size < 1:  # Just in case...
             raise NotImplementedError(f'Reading {size} bytes: Unused case')
         data = self.src.read(size)
-        self.md.update(data)
-        self.dst.write(data)
-        self.target_size += len(data)
+        self._tee(data)
         return data
 
     def readinto(self, b):
-        assert(isinstance(b, bytearray))
-        data = self.read(len(b))
-        n = len(data)
-        b[:n] = data
+        # No intermediate bytes object: we checksum and copy from a view on b
+        n = self.src.readinto(b)
+        with memoryview(b) as mv:
+            self._tee(mv[:n])
+        return n
+
+    def __enter__(self):
+        return self
+
+    def __exit__(self, *exc):
+        pass
+
+
+class _Slot():
+    """A buffer from the ring, and how many stages still use it."""
+    __slots__ = ('buf', 'n', 'users')
+
+    def __init__(self, size):
+        self.buf = bytearray(size)
+        self.n = 0
+        self.users = 0
+
+
+# No seek: use VerifyPayloadFile when there is an edit list.
+class PipelinedPayloadFile():
+    """IO reader running the copy and the checksum in separate threads.
+
+    A reader thread fills a bounded ring of preallocated buffers from the source file.
+    Each filled buffer is handed to:
+    * a hasher thread, checksumming the stream
+    * a writer thread, copying the bytes to a destination file (if any)
+    * the caller of ``read()``, ie the decryptor
+    A buffer returns to the ring when all stages are done with it.
+
+    File I/O and hashlib release the GIL, so the stages overlap.
+    Use it as a context manager: the threads are joined on exit, and their errors re-raised.
+    """
+    def __init__(self, fileobj, dstobj, md, buffers=8, buffer_size=1048576):
+        """Initiliaze the ring and start the stages."""
+        assert buffers > 0, "We need at least 1 buffer in the ring"  # 1: the stages take turns
+        self.src = fileobj
+        self.dst = dstobj
+        self.md = md
+        self.target_size = 0
+
+        self._free = queue.Queue()
+        for _ in range(buffers):
+            self._free.put(_Slot(buffer_size))
+        self._lock = threading.Lock()
+        self._abort = threading.Event()
+        self._error = None
+
+        self._to_decrypt = queue.Queue()
+        self._current = None  # slot being read by the decryptor
+        self._pos = 0
+        self._eof = False
+
+        stages = [(queue.Queue(), self.md.update)]
+        if self.dst is not None:  # no copy, when it's already done
+            stages.append((queue.Queue(), self.dst.write))
+        self._queues = [q for q, _ in stages] + [self._to_decrypt]
+        self._threads = [threading.Thread(target=self._read, name='payload-reader', daemon=True)]
+        self._threads += [threading.Thread(target=self._stage, args=stage, name='payload-stage', daemon=True)
+                          for stage in stages]
+        for t in self._threads:
+            t.start()
+
+    def _fail(self, e):
+        LOG.error('Payload stage failed: %r', e)
+        if self._error is None:
+            self._error = e
+        self._abort.set()
+
+    def _get(self, q):
+        """Get the next slot, or None if the pipeline is aborted."""
+        while not self._abort.is_set():
+            try:
+                return q.get(timeout=0.1)
+            except queue.Empty:
+                pass
+        return None
+
+    def _release(self, slot):
+        with self._lock:
+            slot.users -= 1
+            if slot.users:
+                return
+        self._free.put(slot)
+
+    def _read(self):
+        try:
+            while True:
+                slot = self._get(self._free)
+                if slot is None:
+                    return
+                slot.n = self.src.readinto(slot.buf)
+                slot.users = len(self._queues)
+                self.target_size += slot.n
+                for q in self._queues:
+                    q.put(slot)
+                if not slot.n:  # EOF is sent along, as an empty slot
+                    return
+        except Exception as e:
+            self._fail(e)
+
+    def _stage(self, q, func):
+        try:
+            while True:
+                slot = self._get(q)
+                if slot is None:
+                    return
+                n = slot.n
+                if n:
+                    with memoryview(slot.buf) as mv:
+                        func(mv[:n])
+                self._release(slot)
+                if not n:
+                    return
+        except Exception as e:
+            self._fail(e)
+
+    def _next(self):
+        """Move the decryptor to the next slot."""
+        if self._current is not None:
+            self._release(self._current)
+            self._current = None
+        slot = self._get(self._to_decrypt)
+        if slot is None:
+            raise self._error or RuntimeError('Payload pipeline aborted')
+        if not slot.n:
+            self._release(slot)
+            self._eof = True
+            return
+        self._current = slot
+        self._pos = 0
+
+    def read(self, size=-1):
+        if size < 1:  # Just in case...
+            raise NotImplementedError(f'Reading {size} bytes: Unused case')
+        chunks = []
+        while size > 0 and not self._eof:
+            if self._current is None or self._pos == self._current.n:
+                self._next()
+                continue
+            slot = self._current
+            k = min(size, slot.n - self._pos)
+            with memoryview(slot.buf) as mv:
+                chunks.append(mv[self._pos:self._pos+k].tobytes())
+            self._pos += k
+            size -= k
+        return b''.join(chunks)
+
+    def readinto(self, b):
+        n = 0
+        with memoryview(b) as dst:
+            size = len(dst)
+            while n < size and not self._eof:
+                if self._current is None or self._pos == self._current.n:
+                    self._next()
+                    continue
+                slot = self._current
+                k = min(size - n, slot.n - self._pos)
+                with memoryview(slot.buf) as mv:
+                    dst[n:n+k] = mv[self._pos:self._pos+k]
+                self._pos += k
+                n += k
         return n
 
+    def close(self):
+        """Let the stages finish, and re-raise their errors."""
+        # Skip what the decryptor did not consume, so that the copy reaches the end of the file
+        while not self._eof and not self._abort.is_set():
+            self._next()
+        for t in self._threads:
+            t.join()
+        if self._error is not None:
+            raise self._error
+
+    def abort(self):
+        self._abort.set()
+        for t in self._threads:
+            t.join()
+
+    def __enter__(self):
+        return self
+
+    def __exit__(self, exc_type, exc, tb):
+        if exc_type is None:
+            self.close()
+        else:
+            self.abort()
+
+
+def body_decrypt_parallel(infile, session_keys, output, pool, window, buffer_size=CIPHER_SEGMENT_SIZE):
+    """Decrypt the whole payload, dispatching the segments to a pool of threads.
+
+    The Crypt4GH segments are independent, so they are decrypted concurrently.
+    The results are sent to ``output`` in the order the segments were read,
+    with at most ``window`` segments in flight.
+
+    The payload is read with ``readinto``, in a reused buffer of (about) ``buffer_size`` bytes.
+
+    The decryption happens in libsodium (via cffi), which releases the GIL.
+    """
+    batch = bytearray(max(1, buffer_size // CIPHER_SEGMENT_SIZE) * CIPHER_SEGMENT_SIZE)
+    pending = deque()
+    eof = False
+    try:
+        with memoryview(batch) as mv:
+            while not eof:
+                # Fill the whole batch: short reads are legal (pipes, network filesystems),
+                # and the segments must be cut at the same offsets as when encrypted
+                n = 0
+                while n < len(batch):
+                    r = infile.readinto(mv[n:])
+                    if not r:
+                        eof = True
+                        break
+                    n += r
+                for i in range(0, n, CIPHER_SEGMENT_SIZE):
+                    segment = mv[i:min(i+CIPHER_SEGMENT_SIZE, n)].tobytes()  # libsodium wants bytes
+                    pending.append(pool.submit(decrypt_block, segment, session_keys))
+                # Reorder: the oldest segment is always the next to go out
+                while pending and (eof or len(pending) > window):
+                    output.send(pending.popleft().result())
+    finally:
+        for f in pending:  # in case of errors
+            f.cancel()
+
+
+KERNEL_COPY_CHUNK = 64 * 1024 * 1024  # so that a cancellation is noticed quickly
+
+
+def kernel_copy(infile, outfile, offset):
+    """Copy the content of ``infile``, from ``offset``, to ``outfile``, without going through userspace.
+
+    We use copy_file_range, which lets NFS or CephFS do server-side copies,
+    and fall back to sendfile if the filesystems do not support it.
+    It is done in chunks, checking for a cancellation in between.
+    Returns the number of copied bytes.
+    """
+    src = infile.fileno()
+    dst = outfile.fileno()
+    remaining = os.fstat(src).st_size - offset
+    copied = 0
+    use_sendfile = not hasattr(os, 'copy_file_range')  # python 3.8+
+    while remaining > 0:
+        db.raise_if_canceled()  # between chunks
+        count = min(remaining, KERNEL_COPY_CHUNK)
+        if use_sendfile:
+            n = os.sendfile(dst, src, offset + copied, count)
+        else:
+            try:
+                n = os.copy_file_range(src, dst, count, offset_src=offset + copied)
+            except OSError as e:
+                if e.errno not in (errno.EXDEV, errno.ENOSYS, errno.EINVAL, errno.EOPNOTSUPP):
+                    raise
+                LOG.debug('copy_file_range not supported (%s): using sendfile', e)
+                use_sendfile = True
+                continue
+        if n == 0:  # the source was truncated under our feet
+            break
+        copied += n
+        remaining -= n
+    return copied
+
+
 @db.check_canceled
-def work(decryption_keys, inbox_fs, staging_fs, data):
+def work(decryption_keys, inbox_fs, staging_fs, copy_payload, payload_file, decrypt_all, data):
     """Read a message, split the header and decrypt the remainder."""
     job_id = int(data['job_id'])
     LOG.info('Working on job id %s with data %s', job_id, data)
@@ -96,10 +367,10 @@ def work(decryption_keys, inbox_fs, staging_fs, data):
             raise exceptions.SessionKeyDecryptionError(header_hex)
 
         # Check if checksum of any of the session keys is in the record file
-        sk_checksums = [hashlib.sha256(session_key).hexdigest().lower() for session_key in session_keys]
-        LOG.debug('Session checksums: %s', sk_checksums)
-        if db.has_session_keys_checksums(sk_checksums):
-            raise exceptions.SessionKeyAlreadyUsedError(sk_checksums)
+        sk_checksums = [hashlib.sha256(session_key).digest() for session_key in session_keys]  # bytes, as in the database
+        LOG.debug('Session checksums: %s', [c.hex() for c in sk_checksums])
+        if db.has_session_keys_checksums(sk_checksums):  # fail early, before decrypting. Re-checked at the end
+            raise exceptions.SessionKeyAlreadyUsedError([c.hex() for c in sk_checksums])
 
         # The infile is left right at the position of the payload
         pos = infile.tell()
@@ -132,55 +403,71 @@ def work(decryption_keys, inbox_fs, staging_fs, data):
             def process_output():
                 while True:
                     data = yield
+                    db.raise_if_canceled()  # at each segment
                     md_md5.update(data)
                     md_sha256.update(data)
 
             output = process_output()
             next(output)  # start it
 
-            # The virtual file/stream
-            vfile = VerifyPayloadFile(infile, outfile, md_payload)
+            src, dst = infile, outfile
+            if copy_payload:
+                # The copy is done first, and the verification reads it back from the page cache
+                LOG.info('Copying the payload in kernel space')
+                with timer('copy'):
+                    copy_payload(infile, outfile, pos)
+                src, dst = open(staged_path, 'rb'), None
+                os.posix_fadvise(src.fileno(), 0, 0, os.POSIX_FADV_SEQUENTIAL)
 
             try:
                 # Decrypting chunk by chunk in memory. No trace on disk.
-                start_time = time.time()
-                if edit_list is None:
-                    # No edit list: decrypt all segments from start to end
-                    body_decrypt(vfile, session_keys, output, 0)
-                else:
-                    # Edit list: it drives which segments is decrypted
-                    body_decrypt_parts(vfile, session_keys, output, edit_list=list(edit_list))
-                    # Question: Should we raise an exception cuz we should not accept that type of files?
-                LOG.debug('Elpased time: %.2f seconds', time.time() - start_time)
+                with timer('decrypt'):
+                    if edit_list is None:
+                        # No edit list: decrypt all segments from start to end
+                        with payload_file(src, dst, md_payload) as vfile:  # The virtual file/stream
+                            decrypt_all(vfile, session_keys, output)
+                    else:
+                        # Edit list: it drives which segments is decrypted
+                        with VerifyPayloadFile(src, dst, md_payload) as vfile:
+                            body_decrypt_parts(vfile, session_keys, output, edit_list=list(edit_list))
+                        # Question: Should we raise an exception cuz we should not accept that type of files?
                 data['target_size'] = vfile.target_size  # or os.stat ?
                 payload_checksum = md_payload.hexdigest()
                 data['payload_checksum'] = {'type': 'sha256', 'value': payload_checksum}
                 LOG.info('Verification completed')
+            except exceptions.JobCanceled:
+                raise  # the staged file is removed by db.check_canceled
             #except ValueError as v:
             except Exception as v: # capture any error here
                 raise exceptions.Crypt4GHPayloadDecryptionError() from v
+            finally:
+                if src is not infile:
+                    src.close()
 
             # Add decrypted checksums to message
             decrypted_payload_checksum = md_sha256.hexdigest()
             data['decrypted_checksums'] = [{'type': 'sha256', 'value': decrypted_payload_checksum},
                                            {'type': 'md5', 'value': md_md5.hexdigest()}]  # for accession id
 
-            # Record in DB
-            db.mark_verified(job_id, data, decrypted_payload_checksum)
+    # Record in DB, if not canceled in the meantime
+    # The session keys are checked and inserted atomically (no check-then-insert data race)
+    res = db.finish_verification(job_id, data, decrypted_payload_checksum, sk_checksums)
+    if res == db.CANCELED:
+        LOG.warning('Job %s was canceled', job_id)
+        os.remove(staged_path)
+        return
+    if res == db.SESSION_KEYS_USED:
+        os.remove(staged_path)  # not to be used
+        raise exceptions.SessionKeyAlreadyUsedError([c.hex() for c in sk_checksums])
 
-            # Record the session keys
-            # Note: there is a data race here. We should 'check-then-insert' atomically.
-            # So we let the database insertion happen and use the 'on-conflict clause', to raise an error
-            db.insert_session_keys_checksums_sha256(job_id, sk_checksums)
-
-    
     # Publish the answer
     clean_message(data)
     publish(data)
     # All good: Ack message
 
 
-def main():
+def setup():
+    """Configure the worker, and return its work function."""
 
     # Loading the key from its storage (be it from file, or from a remote location)
     # the key_config section in the config file should describe how
@@ -189,6 +476,14 @@ def main():
     k = getattr(key, CONF.get(key_section, 'loader_class'))(key_section)
     decryption_keys = [(0, k.private(), None)]
 
+    # Session keys checks, mostly in memory
+    if CONF.getboolean('DEFAULT', 'session_keys_filter', fallback=True):
+        db.start_session_keys_filter()
+
+    # Stop the jobs canceled while they run
+    if CONF.getboolean('DEFAULT', 'cancel_notifications', fallback=True):
+        db.start_cancellation_watcher()
+
     inbox_prefix = CONF.get('inbox', 'location', raw=True)
     def inbox_fs(user, path):
         return os.path.join(inbox_prefix % user, path.strip('/') )
@@ -197,7 +492,38 @@ def main():
     def staging_fs(path):
         return os.path.join(staging_prefix, path.strip('/') )
 
-    do_work = partial(work, decryption_keys, inbox_fs, staging_fs)
+    # Size of the buffers used to read the payload
+    buffer_size = CONF.getint('staging', 'buffer_size', fallback=16 * CIPHER_SEGMENT_SIZE)
+
+    # Decrypting the segments in parallel, if configured so
+    decrypt_workers = CONF.getint('DEFAULT', 'decrypt_workers', fallback=1)
+    if decrypt_workers > 1:
+        LOG.info('Decrypting with %d threads', decrypt_workers)
+        pool = ThreadPoolExecutor(max_workers=decrypt_workers, thread_name_prefix='decrypt')
+        window = CONF.getint('DEFAULT', 'decrypt_window', fallback=4 * decrypt_workers)
+        decrypt_all = partial(body_decrypt_parallel, pool=pool, window=window, buffer_size=buffer_size)
+    else:
+        def decrypt_all(infile, session_keys, output):
+            body_decrypt(infile, session_keys, output, 0)
+
+    # Copying and checksumming in separate threads, if configured so
+    payload_file = VerifyPayloadFile
+    pipeline_buffers = CONF.getint('DEFAULT', 'pipeline_buffers', fallback=0)
+    if pipeline_buffers > 0:
+        LOG.info('Pipelining the payload with %d buffers of %d bytes', pipeline_buffers, buffer_size)
+        payload_file = partial(PipelinedPayloadFile, buffers=pipeline_buffers, buffer_size=buffer_size)
+
+    # Copying the payload to the staging area in kernel space, if configured so
+    copy_payload = None
+    if CONF.get('staging', 'copy', fallback='python') == 'kernel':
+        LOG.info('Staging the payload with copy_file_range/sendfile')
+        copy_payload = kernel_copy
+
+    return partial(work, decryption_keys, inbox_fs, staging_fs, copy_payload, payload_file, decrypt_all)
+
+
+def main():
+    do_work = setup()
 
     # upstream link configured in local broker
     os.umask(0o077)  # no group nor world permissions
@@ -0,0 +1,80 @@
+#!/usr/bin/env python3
+# -*- coding: utf-8 -*-
+
+"""Database maintenance.
+
+Creates the partitions of the terminal jobs ahead of time,
+and detaches the old ones (see local_ega.maintain_partitions).
+It also purges the message contents of the finished jobs (see local_ega.job_payloads).
+"""
+
+import logging
+from time import sleep
+
+from .conf import CONF
+from .utils import db
+
+LOG = logging.getLogger(__name__)
+
+
+@db.retry_once
+def maintain_partitions(span, ahead, keep):
+    with db.connection.cursor() as cur:
+        cur.execute('SELECT * FROM local_ega.maintain_partitions(%(span)s, %(ahead)s, %(keep)s::interval);',
+                    {'span': span, 'ahead': ahead, 'keep': keep})
+        return cur.fetchall()
+
+
+def in_flight_window():
+    """How long a message can wait in the broker's retry queues, in milliseconds.
+
+    The delays double with the attempts, up to the last retry queue (see mq/entrypoint.sh):
+    [broker] retry_ttl and retry_levels are its MQ_RETRY_DELAY and MQ_RETRY_LEVELS."""
+    retries = CONF.getint('broker', 'retries', fallback=10)
+    levels = CONF.getint('broker', 'retry_levels', fallback=8)
+    ttl = CONF.getint('broker', 'retry_ttl', fallback=1000)
+    return sum(ttl << (min(attempt, levels) - 1) for attempt in range(1, retries + 1))
+
+
+@db.retry_once
+def purge_payloads(keep, window):
+    """Delete the message contents (claim checks) of the jobs finished more than ``keep`` ago.
+
+    A job is finished once its last message is consumed (save2db marks it COMPLETED).
+    The ``window`` (in milliseconds) adds the time a message can spend in the retry queues,
+    after the job finished and after its last content was recorded: one might still be there.
+    The dead-lettered messages of a finished job are dropped, if replayed (see amqp.claimed)."""
+    with db.connection.cursor() as cur:
+        cur.execute('''DELETE FROM local_ega.job_payloads p
+                       USING local_ega.job_state s
+                       WHERE s.job_id = p.job_id AND
+                             s.status IN ('ERROR', 'CANCELED', 'COMPLETED') AND
+                             s.last_modified < now() - %(keep)s::interval - %(window)s * interval '1 millisecond' AND
+                             NOT EXISTS (SELECT 1 FROM local_ega.job_payloads q
+                                         WHERE q.job_id = p.job_id AND
+                                               q.created_at >= now() - %(keep)s::interval - %(window)s * interval '1 millisecond');''',
+                    {'keep': keep, 'window': window})
+        return cur.rowcount
+
+
+def main():
+    span = CONF.getint('maintenance', 'span', fallback=1000000)  # job ids per partition. Don't change it afterwards
+    ahead = CONF.getint('maintenance', 'ahead', fallback=2)  # partitions created in advance
+    keep = CONF.get('maintenance', 'keep', fallback=None)  # ex: "90 days". None: nothing detached
+    payloads_keep = CONF.get('maintenance', 'payloads_keep', fallback='1 day')  # see [broker] claim_check
+    interval = CONF.getint('maintenance', 'interval', fallback=3600)  # in seconds. 0: run once
+    window = in_flight_window()
+
+    while True:
+        for action, relation in maintain_partitions(span, ahead, keep):
+            LOG.info('Partition %s: %s', action, relation)
+        purged = purge_payloads(payloads_keep, window)
+        if purged:
+            LOG.info('Purged %d message contents', purged)
+        if interval <= 0:
+            break
+        sleep(interval)
+
+
+# if __name__ == '__main__':
+#     main()
@@ -0,0 +1,280 @@
+#!/usr/bin/env python3
+# -*- coding: utf-8 -*-
+
+"""Single-node pipeline: all the workers in one process.
+
+The dispatcher consumes the messages from CentralEGA, as usual, and the
+other workers run as stages of the same process. The messages between
+them are handed over in memory (one queue per stage), instead of going
+through the broker. Only the messages for CentralEGA, and the errors,
+are still published to the broker.
+
+The stages, by queue (as in mq/entrypoint.sh), and where they publish:
+
+* ``ingest``:    ingest, to ``verified`` (for CentralEGA)
+* ``accession``: backup, to all the ``[destination.N]`` at once, to ``backup2``
+* ``backup2``:   cleanup, to ``save2db``
+* ``save2db``:   save2db, in the ``[archive-db]`` database, to ``files.completed`` (for CentralEGA)
+
+The in-memory messages are written to a journal first (see Journal):
+after a crash, those not done are handled again, at least once, as with the broker.
+"""
+
+import sys
+import os
+import logging
+import json
+import threading
+import queue
+import atexit
+from contextvars import ContextVar
+
+from .conf import CONF
+from .utils import amqp, db, serializers
+from . import dispatcher, ingest, backup, cleanup, save2db
+
+LOG = logging.getLogger(__name__)
+
+
+class Journal():
+    """Write-ahead journal of the in-memory messages, in JSON lines.
+
+    A message is appended, and synced, before it is handed over to its stage.
+    It is marked done once handled (not synced: at worst, it is handled again).
+    The journal is emptied whenever no message is in flight, and compacted
+    (rewritten with the messages in flight only) every ``compact_after`` done marks.
+    """
+
+    def __init__(self, path, compact_after=1000):
+        """Journal in the file ``path``, opened by ``recover``."""
+        self.path = path
+        self.compact_after = compact_after
+        self.lock = threading.Lock()
+        self.last = 0
+        self.pending = {}  # seq -> entry
+        self.marks = 0  # done marks since the last rewrite
+        self.fileobj = None
+
+    def _rewrite(self, entries):
+        """Replace the journal with ``entries``, atomically."""
+        if self.fileobj is not None:
+            self.fileobj.close()
+        tmp = self.path + '.tmp'
+        with open(tmp, 'w', encoding='utf-8') as f:
+            for entry in entries:
+                f.write(json.dumps(entry) + '\n')
+            f.flush()
+            os.fsync(f.fileno())
+        os.replace(tmp, self.path)
+        self.fileobj = open(self.path, 'a', encoding='utf-8')
+        self.marks = 0
+
+    def recover(self):
+        """Start the journal over with the messages not done by a previous run, and return them."""
+        entries = {}
+        if os.path.exists(self.path):
+            with open(self.path, encoding='utf-8') as f:
+                for line in f:
+                    try:
+                        entry = json.loads(line)
+                    except ValueError:  # cut by a crash: it was not handed over
+                        continue
+                    if 'done' in entry:
+                        entries.pop(entry['done'], None)
+                    else:
+                        entries[entry['seq']] = entry
+        self._rewrite(entries.values())
+        self.last = max(entries, default=0)
+        self.pending = dict(entries)
+        return list(entries.values())
+
+    def append(self, entry):
+        """Record a new message, and give it a sequence number."""
+        with self.lock:
+            self.last += 1
+            entry['seq'] = self.last
+            self.fileobj.write(json.dumps(entry) + '\n')
+            self.fileobj.flush()
+            os.fsync(self.fileobj.fileno())
+            self.pending[self.last] = entry
+
+    def done(self, seq):
+        """Mark the message ``seq`` as handled."""
+        with self.lock:
+            self.pending.pop(seq, None)
+            if not self.pending:  # nothing in flight: start over
+                self.fileobj.truncate(0)
+                self.marks = 0
+                return
+            self.fileobj.write(json.dumps({'done': seq}) + '\n')
+            self.fileobj.flush()
+            self.marks += 1
+            if self.marks >= self.compact_after:  # never empty under load: drop what is done
+                self._rewrite(self.pending.values())
+
+    def close(self):
+        if self.fileobj is not None:
+            self.fileobj.close()
+
+
+class Message():
+    """In-memory message, with the part of the amqpstorm interface used by amqp.message_handler."""
+
+    def __init__(self, stage, entry):
+        """Wrap the journal ``entry``."""
+        self._stage = stage
+        self._entry = entry
+        self.body = entry['body']
+        self.content_type = serializers.JSON
+        self.correlation_id = entry['correlation_id']
+        self.delivery_tag = entry['seq']
+        self.properties = {'headers': entry.get('headers')}
+
+    def ack(self):
+        self._stage.journal.done(self.delivery_tag)
+
+    def reject(self, requeue=True):
+        if requeue:
+            self._stage.put(self._entry)
+        else:
+            self._stage.journal.done(self.delivery_tag)
+
+
+# (exchange, routing_key) of the stage running in this thread (see Router.destination)
+_destination = ContextVar('destination', default=None)
+
+
+class Stage():
+    """A worker of the pipeline: its in-memory queue, and the threads handling it.
+
+    ``work`` publishes to ``destination``, an (exchange, routing_key) pair, by default."""
+
+    def __init__(self, name, work, destination, journal, workers=1):
+        """Handle the messages for the ``name`` queue with ``work``, in ``workers`` threads."""
+        self.name = name
+        self.journal = journal
+        self.workers = workers
+        self.queue = queue.Queue()
+
+        def routed_work(data):
+            token = _destination.set(destination)
+            try:
+                return work(data)
+            finally:
+                _destination.reset(token)
+
+        self.process_request = amqp.message_handler(routed_work, name)
+
+    def hand_over(self, content, correlation_id, headers=None, delay=0):
+        """Journal a new message for this stage, and queue it (after ``delay`` seconds)."""
+        entry = {
+            'queue': self.name,
+            'correlation_id': correlation_id,
+            'body': serializers.dumps(serializers.JSON, content).decode(),
+        }
+        if headers:
+            entry['headers'] = headers
+        self.journal.append(entry)
+        self.put(entry, delay)
+
+    def put(self, entry, delay=0):
+        if delay > 0:
+            timer = threading.Timer(delay, self.queue.put, (entry,))
+            timer.daemon = True
+            timer.start()
+        else:
+            self.queue.put(entry)
+
+    def run(self):
+        while True:
+            entry = self.queue.get()
+            self.process_request(Message(self, entry))  # acks or rejects, and never raises
+
+    def start(self):
+        for i in range(self.workers):
+            threading.Thread(target=self.run, name=f'{self.name}-{i}', daemon=True).start()
+
+
+class Router(amqp.AMQPConnection):
+    """Hands the messages for the stages over in memory, and publishes the others to the broker.
+
+    It takes the place of the global ``amqp.connection``."""
+
+    def __init__(self, stages, **kwargs):
+        """Route the messages to the ``stages``, by queue name."""
+        super().__init__(**kwargs)
+        self.stages = stages
+        self.exchange = CONF.get('DEFAULT', 'exchange', fallback='lega')
+        self.retry_exchange = CONF.get('broker', 'retry_exchange', fallback='retry')
+        self.retry_delay = CONF.getint('pipeline', 'retry_delay', fallback=1000) / 1000  # in milliseconds
+
+    def destination(self, exchange=None, routing_key=None):
+        """The running stage's destination, instead of the [DEFAULT] one."""
+        default = _destination.get()
+        if default is not None:  # one of several workers in the same process
+            exchange = exchange or default[0]
+            routing_key = routing_key or default[1]
+        return super().destination(exchange, routing_key)
+
+    def publish(self, content, exchange, routing_key, correlation_id):
+        stage = self.stages.get(routing_key) if exchange == self.exchange else None
+        if stage is None:
+            super().publish(content, exchange, routing_key, correlation_id)
+            return
+        LOG.debug('Handing over to %s', routing_key, extra={'correlation_id': correlation_id})
+        stage.hand_over(content, correlation_id)  # journaled: nothing to confirm
+
+    def publish_body(self, body, content_type, exchange, routing_key, correlation_id, headers=None):
+        stage = self.stages.get(routing_key) if exchange == self.retry_exchange else None
+        if stage is None:
+            super().publish_body(body, content_type, exchange, routing_key, correlation_id, headers)
+            return
+        # A retry (see amqp.retry): the delay doubles with the attempts, as with the retry queues
+        attempt = int((headers or {}).get('lega-attempt', 1))
+        delay = self.retry_delay * 2 ** min(attempt - 1, 16)
+        LOG.debug('Handing over to %s in %.1fs', routing_key, delay, extra={'correlation_id': correlation_id})
+        stage.hand_over(serializers.loads(content_type, body), correlation_id, headers, delay)
+
+
+def main():
+    journal = Journal(CONF.get('pipeline', 'journal'),
+                      compact_after=CONF.getint('pipeline', 'journal_compact', fallback=1000))
+    atexit.register(journal.close)
+    workers = CONF.getint('pipeline', 'workers', fallback=1)  # per stage
+    exchange = CONF.get('DEFAULT', 'exchange', fallback='lega')
+    cega_exchange = CONF.get('DEFAULT', 'cega_exchange', fallback='cega')
+
+    # The files are recorded in the archive database, if it is another one
+    archive = db.connection
+    if CONF.has_section('archive-db'):
+        archive = db.DBConnection(conf_section='archive-db', on_failure=lambda: sys.exit(1))
+        atexit.register(archive.close)
+
+    os.umask(0o077)  # no group nor world permissions
+    stages = [
+        Stage('ingest', ingest.setup(), (exchange, 'verified'), journal, workers),
+        Stage('accession', backup.setup(status='BACKUP2'), (exchange, 'backup2'), journal, workers),
+        Stage('backup2', cleanup.setup(), (exchange, 'save2db'), journal, workers),
+        Stage('save2db', save2db.setup(archive), (cega_exchange, 'files.completed'), journal, workers),
+    ]
+    stages = {stage.name: stage for stage in stages}
+    amqp.connection = Router(stages, on_failure=lambda: sys.exit(1))
+
+    # Resume the in-memory messages of the previous run
+    recovered = journal.recover()
+    if recovered:
+        LOG.info('Resuming %d messages from %s', len(recovered), journal.path)
+    for entry in recovered:
+        stage = stages.get(entry['queue'])
+        if stage is None:
+            LOG.error('Dropping message %s: no stage for %s', entry['seq'], entry['queue'])
+            journal.done(entry['seq'])
+            continue
+        stage.put(entry)
+
+    for stage in stages.values():
+        stage.start()
+
+    # The messages from CentralEGA
+    amqp.consume(dispatcher.work, work_batch=dispatcher.work_batch, batchable=dispatcher.batchable)
+
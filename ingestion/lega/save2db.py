@@ -7,16 +7,23 @@ Worker storing mappings into the storage database.
 """
 
 import logging
+from functools import partial
 
 from .conf import CONF
-from .conf.logging import _cid
+from .conf.logging import get_correlation_id
 from .utils import db, exceptions, clean_message, get_sha256
 from .utils.amqp import consume, publish
 
 LOG = logging.getLogger(__name__)
 
 
-def save_to_db(correlation_id, data):
+def _as_url(path):
+    """Storage URL of a vault path: file:// for plain paths, as is for s3:// URLs."""
+    return path if '://' in path else 'file://' + path
+
+
+def _insert(correlation_id, data):
+    """The query recording the file, and its parameters."""
     filepath = data['filepath']
     username = data['user']
     accession_id = data['accession_id']
@@ -41,37 +48,43 @@ def save_to_db(correlation_id, data):
     # Save to DB
     # Here we use an example DB. Each LocalEGA can implement their own schema
     # and update the query below
-    with db.connection.cursor() as cur:
-        cur.execute('''INSERT INTO local_ega.main (correlation_id,inbox_user,inbox_path,
-                                                   inbox_path_encrypted_checksum,
-                                                   inbox_path_encrypted_checksum_type,
-                                                   inbox_path_size,header,payload_size,
-                                                   payload_checksum, decrypted_checksum, accession_id,
-                                                   payload_path, payload_path2) 
-                           VALUES (%(correlation_id)s,%(inbox_user)s,%(inbox_path)s,
-                                   %(enc_cs)s,%(enc_cs_t)s,%(inbox_path_size)s,
-                                   %(header)s,%(payload_size)s,%(payload_cs)s,
-                                   %(decrypted_cs)s,%(accession_id)s,%(payload_path)s,%(payload_path2)s);''',
-                    {'correlation_id': correlation_id,
-                     'inbox_user': username,
-                     'inbox_path': filepath,
-                     'enc_cs': encrypted_checksum,
-                     'enc_cs_t': encrypted_checksum_type,
-                     'inbox_path_size': data.get('filesize'),
-                     'header': data['header'],
-                     'payload_size': data['target_size'],
-                     'payload_cs': data['payload_checksum']['value'],
-                     'decrypted_cs': get_sha256(decrypted_checksums),
-                     'accession_id': data['accession_id'],
-                     'payload_path': 'file://' + paths[0],
-                     'payload_path2': 'file://' + paths[1],
-                    })
-
-def work(data):
+    return ('''INSERT INTO local_ega.main (correlation_id,inbox_user,inbox_path,
+                                       inbox_path_encrypted_checksum,
+                                       inbox_path_encrypted_checksum_type,
+                                       inbox_path_size,header,payload_size,
+                                       payload_checksum, decrypted_checksum, accession_id,
+                                       payload_path, payload_path2)
+               VALUES (%(correlation_id)s,%(inbox_user)s,%(inbox_path)s,
+                       %(enc_cs)s,%(enc_cs_t)s,%(inbox_path_size)s,
+                       %(header)s,%(payload_size)s,%(payload_cs)s,
+                       %(decrypted_cs)s,%(accession_id)s,%(payload_path)s,%(payload_path2)s);''',
+            {'correlation_id': correlation_id,
+             'inbox_user': username,
+             'inbox_path': filepath,
+             'enc_cs': encrypted_checksum,
+             'enc_cs_t': encrypted_checksum_type,
+             'inbox_path_size': data.get('filesize'),
+             'header': bytes.fromhex(data['header']),  # bytea
+             'payload_size': data['target_size'],
+             'payload_cs': data['payload_checksum']['value'],
+             'decrypted_cs': get_sha256(decrypted_checksums),
+             'accession_id': data['accession_id'],
+             'payload_path': _as_url(paths[0]),
+             'payload_path2': _as_url(paths[1]),
+            })
+
+
+def save_to_db(connection, correlation_id, data):
+    query, params = _insert(correlation_id, data)
+    with connection.cursor() as cur:
+        cur.execute(query, params)
+
+
+def work(connection, data):
 
     LOG.info('Working on %s', data)
 
-    correlation_id = _cid.get()
+    correlation_id = get_correlation_id()
     # should be set
     if not correlation_id:
         raise exceptions.InvalidBrokerMessage('Missing correlation_id. We should have one already set')
@@ -82,7 +95,10 @@ def work(data):
 
 
     if job_type == 'ingest':
-        save_to_db(correlation_id, data)
+        save_to_db(connection, correlation_id, data)
+        if data.get('job_id'):
+            # The job's last message is consumed: its contents can be purged (see maintenance.purge_payloads)
+            db.set_status(int(data['job_id']), 'COMPLETED')
         clean_message(data)
         publish(data)  # will publish to cega, use the same correlation_id
         return
@@ -97,8 +113,48 @@ def work(data):
         
 
 
+def setup(connection=None):
+    """Configure the worker, and return its work function.
+
+    The files are recorded with ``connection`` (default: the [db] one)."""
+    return partial(work, connection or db.connection)
+
+
+async def work_async(connection, data):
+    """As ``work``, with the asyncio runtime (see utils.aio)."""
+    from .utils import aio
+
+    LOG.info('Working on %s', data)
+
+    correlation_id = get_correlation_id()
+    if not correlation_id:
+        raise exceptions.InvalidBrokerMessage('Missing correlation_id. We should have one already set')
+
+    job_type = data.get('type', None)
+    if job_type not in ('ingest', 'mapping'):
+        raise exceptions.InvalidBrokerMessage(f'Invalid job type: {job_type}')
+
+    if job_type == 'ingest':
+        query, params = _insert(correlation_id, data)
+        async with connection.cursor() as cur:
+            await cur.execute(query, params)
+        if data.get('job_id'):
+            await aio.set_status(int(data['job_id']), 'COMPLETED')
+        clean_message(data)
+        await aio.publish(data)  # will publish to cega, use the same correlation_id
+        return
+
+    if job_type == 'mapping':
+        LOG.info('Receiving a mapping (correlation_id %s)', correlation_id)
+        return
+
+
 def main():
-    consume(work)
+    if CONF.get('broker', 'runtime', fallback='threads') == 'asyncio':
+        from .utils import aio
+        aio.consume(partial(work_async, aio.db))
+        return
+    consume(setup())
 
 # if __name__ == '__main__':
 #     main()
@@ -0,0 +1,444 @@
+"""Asyncio runtime, for the latency-bound workers: the dispatcher and save2db.
+
+Selected with ``[broker] runtime = asyncio``.
+
+Their work is a few round trips to the broker and the database per
+message. Instead of a thread per message in flight, each message is
+handled in an asyncio task: up to ``[broker] prefetch`` messages
+(default: 100) are in flight over one broker connection (aio-pika) and
+a pool of database connections (aiopg, over psycopg2: the same SQL and
+adapters as the db module).
+
+The work functions are coroutines, behind the same contract as
+``amqp.consume(work)``: ``await work(content)`` runs in the job context,
+publishes with ``await publish(...)`` and queries the database with
+``async with db.cursor() as cur``. The publishes are confirmed by the
+broker before the message is acked.
+"""
+
+import sys
+import logging
+import asyncio
+from contextlib import asynccontextmanager
+
+import aio_pika
+import aiopg
+import psycopg2
+from psycopg2.extras import Json
+from yarl import URL
+
+from ..conf import CONF
+from ..conf.logging import job_context, get_correlation_id
+from . import exceptions, serializers, clean_message, redact_url, get_sha256
+from .amqp import serialize, claim_check_for
+
+LOG = logging.getLogger(__name__)
+
+
+######################################
+#        AMQP connection             #
+######################################
+
+class AMQPConnection():
+    """One connection to the broker, with a channel in confirm mode.
+
+    aio-pika reconnects, and restores the channel and the consumer.
+    """
+
+    conn = None
+    channel = None
+
+    def __init__(self, conf_section='broker'):
+        """Initialize AMQP class."""
+        self.conf_section = conf_section or 'broker'
+        self.exchanges = {}
+
+    def url(self):
+        """Build the aio-pika URL, including the TLS options, from the configuration."""
+        params = CONF.getsensitive(self.conf_section, 'connection', raw=True)
+        if isinstance(params, bytes):  # secret to str
+            params = params.decode()
+        url = URL(params)
+        if url.scheme == 'amqps':
+            query = {}
+            if not CONF.getboolean(self.conf_section, 'verify_peer', fallback=False):
+                query['no_verify_ssl'] = '1'
+            for key, option in (('cafile', 'cacertfile'), ('certfile', 'certfile'), ('keyfile', 'keyfile')):
+                value = CONF.get(self.conf_section, option, fallback=None)
+                if value:
+                    query[key] = value
+            url = url.update_query(query)
+        return url
+
+    async def connect(self):
+        """Connect to the Message Broker, and open the channel."""
+        url = self.url()
+        LOG.info("Initializing an asyncio connection to: %s", redact_url(str(url)))
+        self.conn = await aio_pika.connect_robust(url)
+        self.channel = await self.conn.channel(publisher_confirms=True)
+        return self.channel
+
+    async def publish_body(self, body, content_type, exchange, routing_key, correlation_id, headers=None):
+        """Send an already encoded message. Returns once the broker confirmed it, and raises if it is nacked."""
+        ex = self.exchanges.get(exchange)
+        if ex is None:
+            ex = await self.channel.get_exchange(exchange, ensure=False) if exchange else self.channel.default_exchange
+            self.exchanges[exchange] = ex
+        LOG.debug('Sending to exchange: %s [routing key: %s]', exchange, routing_key, extra={'correlation_id': correlation_id})
+        message = aio_pika.Message(body,
+                                   headers=headers or {},
+                                   content_type=content_type,
+                                   correlation_id=correlation_id,
+                                   delivery_mode=aio_pika.DeliveryMode.PERSISTENT)
+        await ex.publish(message, routing_key=routing_key)
+
+    async def close(self):
+        if self.conn is not None:
+            await self.conn.close()
+        self.conn = None
+        self.channel = None
+        self.exchanges = {}
+
+
+######################################
+#          DB connection             #
+######################################
+
+class DBConnection():
+    """Pool of database connections, for the coroutines.
+
+    The pool keeps ``pool_min`` connections open and grows up to ``pool_max``
+    (default: 10); beyond that, the tasks wait for a connection to be returned.
+    aiopg connections are in autocommit mode: each statement is its own transaction.
+    """
+
+    pool = None
+
+    def __init__(self, conf_section='db'):
+        """Initialize config section parameters for DB."""
+        self.conf_section = conf_section or 'db'
+
+    async def connect(self):
+        """Create the connection pool.
+
+        We try to connect ``try`` times every ``try_interval`` seconds (defined in CONF), and exit otherwise.
+        """
+        args = CONF.getsensitive(self.conf_section, 'connection')
+        if isinstance(args, bytes):  # secret to str
+            args = args.decode()
+        interval = CONF.getint(self.conf_section, 'try_interval', fallback=1)
+        attempts = CONF.getint(self.conf_section, 'try', fallback=1)
+        min_size = CONF.getint(self.conf_section, 'pool_min', fallback=1)
+        max_size = CONF.getint(self.conf_section, 'pool_max', fallback=max(min_size, 10))
+        LOG.info("Initializing an asyncio connection pool (%d-%d) to %s", min_size, max_size, redact_url(args))
+        backoff = interval
+        for count in range(1, attempts+1):
+            try:
+                self.pool = await aiopg.create_pool(args, minsize=min_size, maxsize=max_size)
+                LOG.debug("Connection successful")
+                return
+            except psycopg2.OperationalError as e:
+                LOG.error("Database connection attempt %d failed: %r", count, e)
+            await asyncio.sleep(backoff)
+            backoff = (2 ** (count // 10)) * interval
+        LOG.error("Failed to connect.")
+        sys.exit(1)
+
+    @asynccontextmanager
+    async def cursor(self):
+        """Return a DB Cursor, on a connection from the pool. The closed connections are not returned to it."""
+        async with self.pool.acquire() as conn:
+            async with conn.cursor() as cur:
+                yield cur
+
+    async def close(self):
+        if self.pool is not None:
+            self.pool.close()
+            await self.pool.wait_closed()
+        self.pool = None
+
+
+######################################
+#           Business logic           #
+######################################
+
+# The global instances
+connection = AMQPConnection()
+db = DBConnection()
+
+
+async def insert_job(filename, user_id, encrypted_checksums=None):
+    """Insert a new file entry and returns its id (see db.insert_job)."""
+    correlation_id = get_correlation_id()
+    assert correlation_id, 'Eh? No correlation_id?'
+    encrypted_sha256_checksum = get_sha256(encrypted_checksums)
+    async with db.cursor() as cur:
+        await cur.execute('''SELECT * FROM local_ega.insert_job(%(correlation_id)s::text,
+                                                                %(filename)s::text,
+                                                                %(user_id)s::text,
+                                                                %(cs)s::text,
+                                                                %(cs_type)s);''',
+                          {'correlation_id': correlation_id,
+                           'filename': filename,
+                           'user_id': user_id,
+                           'cs': encrypted_sha256_checksum,
+                           'cs_type': None if encrypted_sha256_checksum is None else 'SHA256'})
+        _id = (await cur.fetchone())[0]
+    if _id is None:
+        raise Exception('Database issue with insert_job')
+    LOG.debug('Inserted job id %s for %s', _id, filename)
+    return _id
+
+async def cancel_job(filename, user_id, encrypted_checksums=None):
+    """Cancel a job (see db.cancel_job)."""
+    correlation_id = get_correlation_id()
+    assert correlation_id, 'Eh? No correlation_id?'
+    encrypted_sha256_checksum = get_sha256(encrypted_checksums)
+    async with db.cursor() as cur:
+        await cur.execute('''SELECT * FROM local_ega.cancel_job(%(correlation_id)s::text,
+                                                                %(filename)s::text,
+                                                                %(user_id)s::text,
+                                                                %(cs)s::text,
+                                                                %(cs_type)s);''',
+                          {'correlation_id': correlation_id,
+                           'filename': filename,
+                           'user_id': user_id,
+                           'cs': encrypted_sha256_checksum,
+                           'cs_type': None if encrypted_sha256_checksum is None else 'SHA256'})
+        _id = (await cur.fetchone())[0]
+    if _id is None:
+        raise Exception('Database issue with cancel_job')
+    LOG.debug('Canceled job id %s for %s', _id, filename)
+    return _id
+
+async def find_job(filename, user_id, decrypted_payload_checksum):
+    """Find the job of a file, and return its id and staging information (see db.find_job)."""
+    correlation_id = get_correlation_id()
+    assert correlation_id, 'Eh? No correlation_id?'
+    async with db.cursor() as cur:
+        await cur.execute('''SELECT id, staging_info
+                             FROM local_ega.jobs
+                             WHERE correlation_id = %(correlation_id)s AND
+                                   inbox_path = %(filename)s AND
+                                   user_id = %(user_id)s AND
+                                   decrypted_payload_checksum = %(decrypted_payload_checksum)s''',
+                          {'correlation_id': correlation_id,
+                           'filename': filename,
+                           'user_id': user_id,
+                           'decrypted_payload_checksum': decrypted_payload_checksum})
+        res = await cur.fetchone()
+    return res if res else None
+
+async def set_status(job_id, status):
+    """Set job status (see db.set_status)."""
+    assert job_id, 'Eh? No job_id?'
+    LOG.debug('Setting job %s to "%s"', job_id, status)
+    async with db.cursor() as cur:
+        await cur.execute('UPDATE local_ega.job_state '
+                          'SET status = %(status)s, last_modified = clock_timestamp() '
+                          "WHERE job_id = %(job_id)s AND status NOT IN ('ERROR', 'CANCELED', 'COMPLETED');",
+                          {'status': status,
+                           'job_id': job_id})
+
+async def is_finished(job_id):
+    """Check if this job is canceled, failed or completed (see db.is_canceled)."""
+    async with db.cursor() as cur:
+        await cur.execute("SELECT EXISTS(SELECT 1 FROM local_ega.job_state WHERE job_id = %(job_id)s AND status IN ('CANCELED', 'ERROR', 'COMPLETED'));",
+                          {'job_id': job_id})
+        found = await cur.fetchone()
+    return bool(found and found[0])
+
+
+# Claim checks (see amqp.claim_check and amqp.claimed)
+
+async def claim_check(content, correlation_id):
+    """Record the content of a job's message in the database, and return the message referencing it."""
+    async with db.cursor() as cur:
+        await cur.execute('SELECT local_ega.insert_payload(%(job_id)s, %(data)s);',
+                          {'job_id': content['job_id'],
+                           'data': Json(content)})
+        version = (await cur.fetchone())[0]
+    return {'job_id': content['job_id'], 'correlation_id': correlation_id, 'payload_version': version}
+
+async def claimed(content):
+    """The content referenced by a claim-check message, or ``content`` itself if it is not one."""
+    if not (isinstance(content, dict) and 'payload_version' in content):
+        return content
+    job_id, version = content['job_id'], content['payload_version']
+    async with db.cursor() as cur:
+        await cur.execute('SELECT data FROM local_ega.job_payloads WHERE job_id = %(job_id)s AND version = %(version)s;',
+                          {'job_id': job_id,
+                           'version': version})
+        res = await cur.fetchone()
+    if res is None:
+        raise exceptions.PayloadNotFound(job_id, version)
+    return res[0]  # psycopg2 json decoder
+
+
+async def publish(content, exchange=None, routing_key=None, correlation_id=None):
+    """Publish as ``amqp.publish``, and return once the broker confirmed it."""
+    correlation_id = correlation_id or get_correlation_id()
+    assert(correlation_id), "You should not publish without a correlation id"
+    exchange = exchange or CONF.get('DEFAULT', 'exchange', fallback='lega')
+    routing_key = routing_key or CONF.get('DEFAULT', 'routing_key')
+    if isinstance(content, dict) and content.get('job_id') and claim_check_for(exchange, routing_key):
+        content = await claim_check(content, correlation_id)
+    content_type, body = serialize(content, exchange, routing_key)
+    await connection.publish_body(body, content_type, exchange, routing_key, correlation_id)
+
+
+async def settle(message, settle_message):
+    """Ack or reject the consumed ``message``, with ``settle_message()``.
+
+    If the channel is gone, the broker redelivers the message: nothing to do."""
+    try:
+        await settle_message()
+    except Exception as e:
+        LOG.error('Could not settle message %s: %r', message.delivery_tag, e)
+
+
+async def retry(message, queue, reason):
+    """Send the consumed ``message`` back to ``queue`` after a while, or to the dead letters (see amqp.retry)."""
+    retries = CONF.getint('broker', 'retries', fallback=10)
+    if retries <= 0:
+        await settle(message, message.reject)  # requeue=True
+        return
+    headers = dict(message.headers or {})
+    attempt = int(headers.get('lega-attempt', 0)) + 1
+    headers['lega-attempt'] = str(attempt)  # a string: matched by the retry exchange
+    if attempt > retries:
+        LOG.error('Message %s rejected %d times: dead-lettered', message.delivery_tag, retries)
+        exchange = CONF.get('broker', 'dead_letter_exchange', fallback='dlx')
+        headers['lega-reason'] = str(reason)
+    else:
+        LOG.warning('Message %s retried later (attempt %d of %d)', message.delivery_tag, attempt, retries)
+        exchange = CONF.get('broker', 'retry_exchange', fallback='retry')
+    await connection.publish_body(message.body, message.content_type, exchange, queue, message.correlation_id, headers)
+    await settle(message, message.ack)
+
+
+async def _handle_request(work, message, content, exchange, error_key, queue):
+    # As amqp._handle_request
+    try:
+        await work(content)
+        # If no exception: we ack (what it published is confirmed)
+        await settle(message, message.ack)
+    except exceptions.FromUser as ue: # ValueError for decryption errors
+        cause = ue.__cause__ or ue
+        LOG.error('%r', cause)  # repr(cause) = Technical
+        assert( isinstance(content, dict) ), "We should have a dict here"
+        content['reason'] = str(cause)  # str = Informal
+        clean_message(content)
+        await publish(content, exchange=exchange, routing_key=error_key)
+        await settle(message, message.ack)
+        raise ue # to send it to error too (already acked)
+    except exceptions.RejectMessage as rm:
+        LOG.warning('Message %s rejected: %s', message.delivery_tag, rm)
+        await retry(message, queue, rm)
+
+async def _on_error(message, content, e, correlation_id, settled=False):
+    """Tell Local EGA, and reject the message (unless already ``settled``)."""
+    cause = e.__cause__ or e
+    LOG.error('%r', cause)  # repr(cause) = Technical
+    content['error'] = {
+        'informal': str(cause),
+        'formal': repr(cause),
+    }
+    # Tell Local EGA
+    await publish(content,
+                  exchange=CONF.get('DEFAULT', 'exchange', fallback='lega'),
+                  routing_key=CONF.get('DEFAULT', 'lega_error', fallback='error'),
+                  correlation_id=correlation_id)
+    if not settled:
+        await settle(message, lambda: message.reject(requeue=False))
+
+def message_handler(work, from_queue):
+    """Return the coroutine function handling a message consumed from ``from_queue`` with ``work``.
+
+    It acks or rejects the message, and never raises (see amqp.message_handler)."""
+
+    cega_exchange = CONF.get('DEFAULT', 'cega_exchange', fallback='cega')
+    cega_error_key = CONF.get('DEFAULT', 'cega_error', fallback='files.error')
+
+    async def process_request(message):
+        with job_context(message.correlation_id) as job:  # per task
+            LOG.info('Consuming message %s', message.delivery_tag)
+            await _process_request(message, job)
+
+    async def _process_request(message, job):
+        correlation_id = job.correlation_id
+        content = message.body
+        try:
+            content = serializers.loads(message.content_type, content)
+            content = await claimed(content)  # the database has the content, with [broker] claim_check
+
+            if not content: # nothing to do ?
+                await settle(message, message.ack)
+                return
+
+            if isinstance(content, dict) and content.get('job_id'):
+                job.job_id = content['job_id']
+
+            with job.timer('total'):
+                await _handle_request(work, message, content, cega_exchange, cega_error_key, from_queue)
+            LOG.debug('Timers: %s', job.timers)
+
+        except exceptions.PayloadNotFound as pnf:
+            if not await is_finished(pnf.job_id):  # not finished: that's an error
+                await _on_error(message, content, pnf, correlation_id)
+                return
+            LOG.warning('Dropping message %s: %s, and job %s is finished', message.delivery_tag, pnf, pnf.job_id)
+            await settle(message, message.ack)
+        except serializers.DecodeError as je:
+            LOG.error('Malformed JSON-message: %s', je)
+            error = {
+                'informal': 'Malformed JSON-message',
+                'formal': repr(je.__cause__ or je),
+                'message': content if isinstance(content, str) else content.hex(),
+            }
+            # Tell Central EGA
+            await publish(error, exchange=cega_exchange, routing_key=cega_error_key)
+            await settle(message, lambda: message.reject(requeue=False))
+        except Exception as e:
+            await _on_error(message, content, e, correlation_id, settled=isinstance(e, exceptions.FromUser))
+
+    return process_request
+
+
+def _bail_out_on_error(task):
+    """Exit if a task failed: process_request should never raise."""
+    if task.cancelled() or task.exception() is None:
+        return
+    LOG.critical('Unexpected error: %r', task.exception())
+    sys.exit(2)  # in the loop: it stops the loop, and asyncio.run returns
+
+
+async def _consume(work, from_queue):
+    channel = await connection.connect()
+    await db.connect()
+    prefetch = CONF.getint('broker', 'prefetch', fallback=100)
+    await channel.set_qos(prefetch_count=prefetch)
+    queue = await channel.get_queue(from_queue, ensure=False)
+    process_request = message_handler(work, from_queue)
+
+    LOG.info('Consuming message from %s (prefetch: %d)', from_queue, prefetch)
+    tasks = set()  # referenced until done
+    try:
+        async with queue.iterator() as messages:
+            async for message in messages:
+                task = asyncio.ensure_future(process_request(message))
+                tasks.add(task)
+                task.add_done_callback(tasks.discard)
+                task.add_done_callback(_bail_out_on_error)
+    finally:
+        await connection.close()
+        await db.close()
+
+
+def consume(work):
+    """Run the coroutine ``work(content)`` for each message of the [DEFAULT] queue, concurrently. Blocking."""
+    from_queue = CONF.get('DEFAULT', 'queue')
+    try:
+        asyncio.run(_consume(work, from_queue))
+    except KeyboardInterrupt:
+        LOG.info('Stop consuming (Keyboard Interrupt)')
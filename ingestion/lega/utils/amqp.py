@@ -3,12 +3,15 @@
 import sys
 import os
 import logging
-import json
 import ssl
 from socket import gethostname
 from pwd import getpwuid
 import atexit
-from time import sleep
+import threading
+from queue import Queue, Empty
+from time import sleep, monotonic
+from concurrent.futures import ThreadPoolExecutor
+from functools import lru_cache
 
 
 from amqpstorm import (UriConnection, Connection as OrgConnection, Message,
@@ -16,8 +19,8 @@ from amqpstorm import (UriConnection, Connection as OrgConnection, Message,
 
 
 from ..conf import CONF
-from ..conf.logging import _cid
-from . import (exceptions, redact_url, clean_message, log_trace)
+from ..conf.logging import job_context, get_correlation_id
+from . import (exceptions, redact_url, clean_message, log_trace, serializers, db)
 
 LOG = logging.getLogger(__name__)
 
@@ -39,10 +42,13 @@ class AMQPConnection():
     ssl_options = None
     interval = None
     attempts = None
+    prefetch = None
+    use_confirms = None  # [broker] confirms, unless set before connecting
 
     def __init__(self, client_properties=None, conf_section='broker', on_failure=None):
         """Initialize AMQP class."""
         self.on_failure = on_failure
+        self.lock = threading.RLock()  # worker threads publish concurrently
         self.conf_section = conf_section or 'broker'
         # LOG.debug('Conf section', self.conf_section)
         # assert self.conf_section in CONF.sections(), "Section not found in config file"
@@ -75,6 +81,10 @@ class AMQPConnection():
 
         self.interval = CONF.getint(self.conf_section, 'try_interval', fallback=1)
         self.attempts = CONF.getint(self.conf_section, 'try', fallback=30)
+        workers = CONF.getint(self.conf_section, 'workers', fallback=1)
+        self.prefetch = CONF.getint(self.conf_section, 'prefetch', fallback=workers)
+        if self.use_confirms is None:
+            self.use_confirms = CONF.getboolean(self.conf_section, 'confirms', fallback=True)
 
         LOG.info("Initializing a connection to: %s", redact_url(params))
         self.connection_params =  params
@@ -115,6 +125,10 @@ class AMQPConnection():
 
     def connect(self, force=False):
         """Connect to the Message Broker supporting AMQP(S)."""
+        with self.lock:
+            self._connect(force=force)
+
+    def _connect(self, force=False):
         if force:
             LOG.debug("Force close the connection")
             self.close()
@@ -167,33 +181,55 @@ class AMQPConnection():
         self.pub_channel = None
 
 
+    def destination(self, exchange=None, routing_key=None):
+        """Where ``publish`` sends a message, by default: the [DEFAULT] exchange and routing_key."""
+        return (exchange or CONF.get('DEFAULT', 'exchange', fallback='lega'),
+                routing_key or CONF.get('DEFAULT', 'routing_key'))
+
     # We are reusing the same channel to publish all the messages
     # Consumes goes from the MQ to the client, publish goes from the client to MQ
     # Should we use a session instead? Is it only in AMQP 1.0 ? (amqpstorm is 0.9.1)
     def publish(self, content, exchange, routing_key, correlation_id):
-        """Send a message to the local broker exchange using the given routing key."""
-        self.connect()
-        if self.pub_channel is None:
-            self.pub_channel = self.conn.channel()
+        """Send a message to the local broker exchange using the given routing key.
+
+        In confirm mode, it returns once the broker confirmed it, and raises if it is nacked."""
+        content_type, body = serialize(content, exchange, routing_key)
+        self.publish_body(body, content_type, exchange, routing_key, correlation_id)
+
+    def publish_body(self, body, content_type, exchange, routing_key, correlation_id, headers=None):
+        """Send an already encoded message, as ``publish``."""
+        with self.lock:
+            self._connect()
+            if self.pub_channel is None:
+                self.pub_channel = self.conn.channel()
+                if self.use_confirms:
+                    self.pub_channel.confirm_deliveries()
 
         LOG.debug('Sending to exchange: %s [routing key: %s]', exchange, routing_key, extra={'correlation_id': correlation_id})
         properties = {
             'correlation_id': correlation_id,
-            'content_type': 'application/json',
+            'content_type': content_type,
             'delivery_mode': 2,
         }
-        message = Message.create(self.pub_channel, json.dumps(content, indent=4), properties=properties)
-        message.publish(routing_key, exchange=exchange)
+        if headers:
+            properties['headers'] = headers
+        message = Message.create(self.pub_channel, body, properties=properties)
+        # In confirm mode, amqpstorm waits for the Basic.Ack (True) or Basic.Nack (False), one publish at a time
+        if message.publish(routing_key, exchange=exchange) is False:
+            raise AMQPChannelError(f'Publish to {exchange} [routing key: {routing_key}] nacked by the broker')
 
-    def consume(self, queue, process_request):
-        """Robust consumer"""
+    def consume(self, queue, process_request, prefetch=None):
+        """Robust consumer
+
+        The broker sends at least ``prefetch`` messages ahead, if given."""
         while True:
             try:
                 self.connect()
                 if self.pull_channel is None:
                     self.pull_channel = self.conn.channel()
-                LOG.info('Consuming message from %s', queue)
-                self.pull_channel.basic.qos(prefetch_count=1)  # One job per worker
+                count = max(self.prefetch, prefetch or 0)
+                LOG.info('Consuming message from %s (prefetch: %d)', queue, count)
+                self.pull_channel.basic.qos(prefetch_count=count)
                 self.pull_channel.basic.consume(queue=queue, callback=process_request)
                 self.pull_channel.start_consuming()
             except (AMQPChannelError, AMQPConnectionError) as e:
@@ -206,18 +242,137 @@ class AMQPConnection():
                 # self.close() # Not needed. Done by atexit (see below)
                 break
 
+    def consume_batches(self, queue, process_batch, size, timeout):
+        """Robust consumer, handing the messages over in batches, in the calling thread.
+
+        The messages are consumed in a background thread.
+        A batch is processed when it has ``size`` messages, or ``timeout`` seconds after its first message.
+        On reconnection, the messages of the current batch can't be acked anymore: they are redelivered."""
+        inbox = Queue()
+
+        def consumer():
+            try:
+                self.consume(queue, inbox.put, prefetch=size)  # or the batches never fill up
+            except BaseException as e:  # for the calling thread to raise
+                inbox.put(e)
+
+        threading.Thread(target=consumer, name='consumer', daemon=True).start()
+
+        def get(timeout=None):
+            message = inbox.get(timeout=timeout)
+            if isinstance(message, BaseException):
+                raise message
+            return message
+
+        try:
+            while True:
+                batch = [get()]  # waiting for the first one
+                deadline = monotonic() + timeout
+                while len(batch) < size:
+                    remaining = deadline - monotonic()
+                    if remaining <= 0:
+                        break
+                    try:
+                        batch.append(get(timeout=remaining))
+                    except Empty:
+                        break
+                process_batch(batch)
+        except KeyboardInterrupt:
+            LOG.info('Stop consuming (Keyboard Interrupt)')
+            if self.pull_channel:
+                self.pull_channel.stop_consuming()
+
 
 
 ######################################
 #           Business logic           #
 ######################################
 
+def to_cega(exchange, routing_key):
+    """Whether the messages sent to ``exchange`` with ``routing_key`` end up at CentralEGA:
+    the cega exchange, and the [broker] cega_routing_keys forwarded to it by the broker (see mq/entrypoint.sh)."""
+    return (exchange == CONF.get('DEFAULT', 'cega_exchange', fallback='cega') or
+            routing_key in CONF.get('broker', 'cega_routing_keys', fallback='verified').split())
+
+@lru_cache(maxsize=None)
+def content_type_for(exchange, routing_key):
+    """Content type of the messages sent to ``exchange`` with ``routing_key``.
+
+    [broker] content_type (default JSON) for the LocalEGA-internal messages,
+    but always JSON for what goes to CentralEGA."""
+    if to_cega(exchange, routing_key):
+        return serializers.JSON
+    content_type = CONF.get('broker', 'content_type', fallback=serializers.JSON)
+    serializers.check(content_type)
+    return content_type
+
+@lru_cache(maxsize=None)
+def claim_check_for(exchange, routing_key):
+    """Whether the messages sent to ``exchange`` with ``routing_key`` only carry a reference to their content.
+
+    With [broker] claim_check, for the LocalEGA-internal messages, except the errors."""
+    if not CONF.getboolean('broker', 'claim_check', fallback=False):
+        return False
+    return not (to_cega(exchange, routing_key) or
+                routing_key == CONF.get('DEFAULT', 'lega_error', fallback='error'))
+
+def claim_check(content, correlation_id):
+    """Record the content of a job's message in the database, and return the message referencing it."""
+    version = db.insert_payload(content['job_id'], content)
+    return {'job_id': content['job_id'], 'correlation_id': correlation_id, 'payload_version': version}
+
+def claimed(content):
+    """The content referenced by a claim-check message, or ``content`` itself if it is not one."""
+    if isinstance(content, dict) and 'payload_version' in content:
+        return db.select_payload(content['job_id'], content['payload_version'])
+    return content
+
+def serialize(content, exchange, routing_key):
+    """Encode the content of a message, for that destination. Returns its content type and body."""
+    content_type = content_type_for(exchange, routing_key)
+    return content_type, serializers.dumps(content_type, content)
+
 # Instantiate a global instance
 connection = AMQPConnection(on_failure=lambda: sys.exit(1))
 
 atexit.register(lambda: connection.close())
 
-def _handle_request(work, message, content, exchange, error_key):
+def settle(message, settle_message):
+    """Ack or reject the consumed ``message``, with ``settle_message()``.
+
+    What the job published is already confirmed (see AMQPConnection.publish).
+    If the channel is gone, the broker redelivers the message: nothing to do."""
+    try:
+        settle_message()
+    except AMQPError as e:
+        LOG.error('Could not settle message %s: %r', message.delivery_tag, e)
+
+
+def retry(message, queue, reason):
+    """Send the consumed ``message`` back to ``queue`` after a while, or to the dead letters.
+
+    The delay grows with the attempts, counted in the message headers (see the retry queues
+    in mq/entrypoint.sh). After [broker] retries attempts, it goes to the dead-letter exchange.
+    With [broker] retries = 0, it is requeued right away, as before."""
+    retries = CONF.getint('broker', 'retries', fallback=10)
+    if retries <= 0:
+        message.reject()  # requeue=True
+        return
+    headers = dict((message.properties or {}).get('headers') or {})
+    attempt = int(headers.get('lega-attempt', 0)) + 1
+    headers['lega-attempt'] = str(attempt)  # a string: matched by the retry exchange
+    if attempt > retries:
+        LOG.error('Message %s rejected %d times: dead-lettered', message.delivery_tag, retries)
+        exchange = CONF.get('broker', 'dead_letter_exchange', fallback='dlx')
+        headers['lega-reason'] = str(reason)
+    else:
+        LOG.warning('Message %s retried later (attempt %d of %d)', message.delivery_tag, attempt, retries)
+        exchange = CONF.get('broker', 'retry_exchange', fallback='retry')
+    # As is, to the queue name: back to it through the default exchange (or kept with the dead letters)
+    connection.publish_body(message.body, message.content_type, exchange, queue, message.correlation_id, headers)
+    settle(message, message.ack)
+
+def _handle_request(work, message, content, exchange, error_key, queue):
     # Run the job. There are 4 cases:
     #    * Message rejected by raise RejectMessage inside work
     #    * Malformatted message: ack message, but send to system.error
@@ -227,8 +382,8 @@ def _handle_request(work, message, content, exchange, error_key):
     try:
         # Run the job
         work(content)
-        # If no exception: we ack
-        message.ack()
+        # If no exception: we ack (what it published is confirmed)
+        settle(message, message.ack)
     except exceptions.FromUser as ue: # ValueError for decryption errors
         cause = ue.__cause__ or ue
         LOG.error('%r', cause)  # repr(cause) = Technical
@@ -236,83 +391,190 @@ def _handle_request(work, message, content, exchange, error_key):
         content['reason'] = str(cause)  # str = Informal
         clean_message(content)
         publish(content, exchange=exchange, routing_key=error_key)
-        message.ack()
-        raise ue # to send it to error too
+        settle(message, message.ack)
+        raise ue # to send it to error too (already acked)
     except exceptions.RejectMessage as rm:
         LOG.warning('Message %s rejected: %s', message.delivery_tag, rm)
-        message.reject() # requeue=True
-
-def consume(work, ack_on_error=True, threaded=True):
-    """Register callback ``work`` to be called, blocking function.
-
-    If there are no message in ``from_queue``, the function blocks and waits for new messages.
-
-    The message is acked if the function ``work`` does not raise an Exception.
-    """
-
-    lega_exchange = CONF.get('DEFAULT', 'exchange', fallback='lega')
-    from_queue = CONF.get('DEFAULT', 'queue')
-    lega_error_key = CONF.get('DEFAULT', 'lega_error', fallback='error')
+        retry(message, queue, rm)
+
+def _on_error(message, content, e, correlation_id, settled=False):
+    """Tell Local EGA, and reject the message (unless already ``settled``)."""
+    # log_trace() # Locate the error
+    cause = e.__cause__ or e
+    LOG.error('%r', cause)  # repr(cause) = Technical
+    content['error'] = {
+        'informal': str(cause),
+        'formal': repr(cause),
+    }
+    # Tell Local EGA
+    publish(content,
+            exchange=CONF.get('DEFAULT', 'exchange', fallback='lega'),
+            routing_key=CONF.get('DEFAULT', 'lega_error', fallback='error'),
+            correlation_id=correlation_id)
+    if not settled:
+        settle(message, lambda: message.reject(requeue=False))
+
+def message_handler(work, from_queue):
+    """Return the function handling a message consumed from ``from_queue`` with ``work``.
+
+    It acks or rejects the message (see _handle_request), and never raises."""
 
     cega_exchange = CONF.get('DEFAULT', 'cega_exchange', fallback='cega')
     cega_error_key = CONF.get('DEFAULT', 'cega_error', fallback='files.error')
 
-    # Normally fetch one message at a time (QOS prefetch: 1)
-    # So there should be one worker thread at most
-
     def process_request(message):
         # LOG.debug('Processing message | headers: %s', message.properties)
         correlation_id = message.correlation_id
         message_id = message.delivery_tag
-        LOG.info('Processing message')
-        _cid.set(correlation_id)  # Normally: data race, if multiple threads. But here, we have 1 worker thread
-        LOG.info('Consuming message %s', message_id, extra={'correlation_id': correlation_id})
+        with job_context(correlation_id) as job:  # per thread
+            LOG.info('Consuming message %s', message_id)
+            _process_request(message, job)
+
+    def _process_request(message, job):
+        correlation_id = job.correlation_id
+        message_id = message.delivery_tag
         content = message.body
         try:
-            if message.content_type == 'application/json':
-                # Process message in JSON format
-                content = json.loads(content)
+            # JSON, or any format in serializers
+            content = serializers.loads(message.content_type, content)
+            content = claimed(content)  # the database has the content, with [broker] claim_check
 
             if not content: # nothing to do ?
                 message.ack() # Force acknowledging the message
                 return
 
-            _handle_request(work, message, content, cega_exchange, cega_error_key) # tell Central EGA on error
+            if isinstance(content, dict) and content.get('job_id'):
+                job.job_id = content['job_id']
 
-        except json.JSONDecodeError as je:
+            with job.timer('total'):
+                _handle_request(work, message, content, cega_exchange, cega_error_key, from_queue) # tell Central EGA on error
+            LOG.debug('Timers: %s', job.timers)
+
+        except exceptions.PayloadNotFound as pnf:
+            if not db.is_canceled(pnf.job_id):  # not finished: that's an error
+                _on_error(message, content, pnf, correlation_id)
+                return
+            # A message of a finished job, after its contents were purged (ex: replayed from the dead letters)
+            LOG.warning('Dropping message %s: %s, and job %s is finished', message_id, pnf, pnf.job_id)
+            settle(message, message.ack)
+        except serializers.DecodeError as je:
             LOG.error('Malformed JSON-message: %s', je, extra={'correlation_id': correlation_id})
             LOG.error('Original message: %s', content, extra={'correlation_id': correlation_id})
             error = {
                 'informal': 'Malformed JSON-message',
-                'formal': repr(je),
-                'message': content,
+                'formal': repr(je.__cause__ or je),
+                'message': content if isinstance(content, str) else content.hex(),
             }
             # Tell Central EGA
-            connection.publish(error,
-                               exchange=cega_exchange,
-                               routing_key=cega_error_key,
-                               correlation_id=correlation_id)
-            message.reject(requeue=False)
+            publish(error,
+                    exchange=cega_exchange,
+                    routing_key=cega_error_key,
+                    correlation_id=correlation_id)
+            settle(message, lambda: message.reject(requeue=False))
         except Exception as e:
-            # log_trace() # Locate the error
-            cause = e.__cause__ or e
-            LOG.error('%r', cause)  # repr(cause) = Technical
-            content['error'] = {
-                'informal': str(cause),
-                'formal': repr(cause),
-            }
-            # Tell Local EGA
-            connection.publish(content,
-                               exchange=lega_exchange,
-                               routing_key=lega_error_key,
-                               correlation_id=correlation_id)
-            message.reject(requeue=False)
-        finally:
-            _cid.set(None)
-    
+            _on_error(message, content, e, correlation_id, settled=isinstance(e, exceptions.FromUser))
+
+    return process_request
+
+
+def _bail_out_on_error(future):
+    """Exit if a worker thread failed: process_request should never raise."""
+    e = future.exception()
+    if e is None:
+        return
+    LOG.critical('%r', e, exc_info=e)
+    connection.close()
+    os._exit(2)  # sys.exit would only end this thread
+
+def consume(work, ack_on_error=True, threaded=True, work_batch=None, batchable=None):
+    """Register callback ``work`` to be called, blocking function.
+
+    If there are no message in ``from_queue``, the function blocks and waits for new messages.
+
+    The message is acked if the function ``work`` does not raise an Exception.
+    With [broker] confirms (the default), what it published is confirmed by the broker by then.
+
+    With ``[broker] batch_size`` > 1, the consecutive messages accepted by ``batchable(content)``
+    are handled together by ``work_batch([(correlation_id, content), ...])``. It returns, for each message,
+    what is left to do for it (a function, or None), run in the message's context. Each message is then
+    acked, or rejected if its function raises. The other messages go to ``work``, in order.
+    """
+
+    from_queue = CONF.get('DEFAULT', 'queue')
+
+    # Each message is handled by one of the worker threads (default: 1).
+    # The broker sends [broker] prefetch messages ahead (default: as many as the workers)
+    process_request = message_handler(work, from_queue)
+
+    def process_batch(messages):
+        # Runs of batchable messages, in order with the others
+        run = []
+        for message in messages:
+            content = None
+            if message.correlation_id:
+                try:
+                    content = serializers.loads(message.content_type, message.body)
+                except serializers.DecodeError:
+                    pass  # reported by process_request
+            if isinstance(content, dict) and batchable(content):
+                run.append((message, content))
+                continue
+            _process_run(run)
+            run = []
+            process_request(message)
+        _process_run(run)
+
+    def _process_run(run):
+        if not run:
+            return
+        with job_context() as job:
+            LOG.info('Consuming %d messages (%d to %d)', len(run), run[0][0].delivery_tag, run[-1][0].delivery_tag)
+            try:
+                with job.timer('total'):
+                    remaining = work_batch([(message.correlation_id, content) for message, content in run])
+            except Exception as e:
+                LOG.error('Batch failed: %r', e)
+                for message, content in run:
+                    with job_context(message.correlation_id):
+                        _on_error(message, content, e, message.correlation_id)
+                return
+            LOG.debug('Timers: %s', job.timers)
+        # Each message is acked or rejected on its own outcome: what it publishes
+        for (message, content), finish in zip(run, remaining):
+            with job_context(message.correlation_id):
+                try:
+                    if finish is not None:
+                        finish()
+                except Exception as e:
+                    _on_error(message, content, e, message.correlation_id)
+                    continue
+                settle(message, message.ack)
+
+    batch_size = CONF.getint('broker', 'batch_size', fallback=1)
+    if work_batch is not None and batch_size > 1:
+        connection.use_confirms = True  # before the messages are acked
+        timeout = CONF.getint('broker', 'batch_timeout', fallback=50) / 1000  # in milliseconds
+        try:
+            connection.consume_batches(from_queue, process_batch, batch_size, timeout)
+        except Exception as e:  # Bail out for any other exceptions
+            LOG.critical('%r', e)
+            log_trace()
+            connection.close()
+            sys.exit(2)
+        return
+
+    workers = CONF.getint(connection.conf_section, 'workers', fallback=1)
+    on_message = process_request
+    if workers > 1:
+        LOG.info('Handling messages with %d worker threads', workers)
+        pool = ThreadPoolExecutor(max_workers=workers, thread_name_prefix='worker')
+        def on_message(message):
+            future = pool.submit(process_request, message)  # acks are sent from the worker thread
+            future.add_done_callback(_bail_out_on_error)
+
     # Run the loop
     try:
-        connection.consume(from_queue, process_request)
+        connection.consume(from_queue, on_message)
     except Exception as e:  # Bail out for any other exceptions
         LOG.critical('%r', e)
         log_trace()
@@ -321,8 +583,9 @@ def consume(work, ack_on_error=True, threaded=True):
 
 
 def publish(content, exchange=None, routing_key=None, correlation_id=None):
-    correlation_id = correlation_id or _cid.get()
+    correlation_id = correlation_id or get_correlation_id()
     assert(correlation_id), "You should not publish without a correlation id"
-    exchange = exchange or CONF.get('DEFAULT', 'exchange', fallback='lega')
-    routing_key = routing_key or CONF.get('DEFAULT', 'routing_key')
+    exchange, routing_key = connection.destination(exchange, routing_key)
+    if isinstance(content, dict) and content.get('job_id') and claim_check_for(exchange, routing_key):
+        content = claim_check(content, correlation_id)
     connection.publish(content, exchange, routing_key, correlation_id)
@@ -0,0 +1,36 @@
+"""Bloom filter for hash digests.
+
+The items are already uniformly distributed (sha256 digests),
+so the bit positions are taken from the items themselves,
+with double hashing, instead of hashing them again.
+"""
+
+import math
+
+
+class BloomFilter():
+    """Set membership with false positives, but no false negatives.
+
+    Sized for ``capacity`` items at a ``error_rate`` false positive rate.
+    """
+
+    def __init__(self, capacity, error_rate=0.001):
+        """Allocate the bit array."""
+        assert capacity > 0 and 0 < error_rate < 1, "Invalid Bloom filter parameters"
+        self.size = max(8, int(-capacity * math.log(error_rate) / (math.log(2) ** 2)))  # in bits
+        self.hashes = max(1, round(self.size / capacity * math.log(2)))
+        self.bits = bytearray((self.size + 7) // 8)
+        self.count = 0
+
+    def _positions(self, item):
+        h1 = int.from_bytes(item[:8], 'little')
+        h2 = int.from_bytes(item[8:16], 'little') | 1
+        return ((h1 + i * h2) % self.size for i in range(self.hashes))
+
+    def add(self, item):
+        for pos in self._positions(item):
+            self.bits[pos >> 3] |= 1 << (pos & 7)
+        self.count += 1
+
+    def __contains__(self, item):
+        return all(self.bits[pos >> 3] & (1 << (pos & 7)) for pos in self._positions(item))
@@ -3,19 +3,28 @@
 """Database Connection."""
 
 import sys
+import os
 import logging
+import threading
+import re
+import select
+import json
 import psycopg2
+import psycopg2.extensions
 from socket import gethostname
 from time import sleep
 from contextlib import contextmanager
-from functools import wraps
+from contextvars import ContextVar
+from functools import wraps, lru_cache
 import atexit
 
 
 from ..conf import CONF
-from ..conf.logging import _cid
-from . import redact_url, get_sha256
+from ..conf.logging import get_correlation_id, current_job
+from . import redact_url, get_sha256, exceptions
+from .bloom import BloomFilter
 from psycopg2.extras import Json
+from psycopg2.pool import ThreadedConnectionPool
 
 LOG = logging.getLogger(__name__)
 
@@ -25,18 +34,34 @@ LOG = logging.getLogger(__name__)
 ######################################
 
 class DBConnection():
-    """Databse connection setup."""
-
-    conn = None
-    curr = None
+    """Databse connection pool.
+
+    A connection is taken from the pool for each ``cursor()`` block, so
+    the worker threads can run their statements concurrently. The pool
+    keeps ``pool_min`` connections open and grows up to ``pool_max``;
+    beyond that, the callers wait for a connection to be returned.
+
+    Connections are not checked before use: a connection that fails is
+    discarded, and an idempotent statement can be retried (see ``retry_once``).
+    When a connection is found closed, the idle ones opened before it are
+    most likely stale too (eg after a database restart): they are closed,
+    instead of used, when they come out of the pool.
+    """
+
+    pool = None
+    semaphore = None
     args = None
     interval = None
     attempts = None
+    min_size = None
+    max_size = None
+    generation = 0  # of the connections, bumped when one is found closed
 
     def __init__(self, conf_section='db', on_failure=None):
         """Initialize config section parameters for DB and failure fallback."""
         self.on_failure = on_failure
         self.conf_section = conf_section or 'db'
+        self.lock = threading.Lock()
 
     def fetch_args(self):
         """Fetch arguments for initializing a connection to db."""
@@ -46,84 +71,262 @@ class DBConnection():
         self.interval = CONF.getint(self.conf_section, 'try_interval', fallback=1)
         self.attempts = CONF.getint(self.conf_section, 'try', fallback=1)
         assert self.attempts > 0, "The number of reconnection should be >= 1"
+        workers = CONF.getint('broker', 'workers', fallback=1)
+        self.min_size = CONF.getint(self.conf_section, 'pool_min', fallback=1)
+        self.max_size = CONF.getint(self.conf_section, 'pool_max', fallback=max(self.min_size, workers))
+        assert 0 < self.min_size <= self.max_size, "We should have 0 < pool_min <= pool_max"
 
 
     def connect(self, force=False):
-        """Get the database connection (which encapsulates a database session).
+        """Create the connection pool.
 
-        Upon success, the connection is cached.
+        Upon success, the pool is cached.
 
         Before success, we try to connect ``try`` times every ``try_interval`` seconds (defined in CONF)
         Executes ``on_failure`` after ``try`` attempts.
         """
-        if force:
-            self.close()
+        with self.lock:
+            if force:
+                self._close()
 
-        if self.conn:
-            return
+            if self.pool:
+                return
 
-        if not self.args:
-            self.fetch_args()
+            if not self.args:
+                self.fetch_args()
+
+            LOG.info("Initializing a connection pool (%d-%d) to %s", self.min_size, self.max_size, redact_url(self.args))
+
+            backoff = self.interval
+            for count in range(1,self.attempts+1):
+                try:
+                    self.pool = ThreadedConnectionPool(self.min_size, self.max_size, self.args,
+                                                       connection_factory=PreparingConnection)
+                    self.semaphore = threading.BoundedSemaphore(self.max_size)
+                    LOG.debug("Connection successful")
+                    return
+                except psycopg2.OperationalError as e:
+                    LOG.debug("Database connection error: %r", e)
+                except psycopg2.InterfaceError as e:
+                    LOG.debug("Invalid connection parameters: %r", e)
+                    break # go to failure
+                LOG.debug("Connection attempt %d", count)
+                sleep(backoff)
+                backoff = (2 ** (count // 10)) * self.interval
+                # from  0 to  9, sleep 1 * self.interval secs
+                # from 10 to 19, sleep 2 * self.interval secs
+                # from 20 to 29, sleep 4 * self.interval secs ... etc
+
+        # fail to connect
+        if callable(self.on_failure):
+            LOG.error("Failed to connect.")
+            self.on_failure()
 
-        LOG.info("Initializing a connection to %s", redact_url(self.args))
+    def _getconn(self):
+        """Take a connection from the pool, skipping the stale ones.
 
+        The pool opens a new connection if it has no idle one. While the database is unreachable,
+        we try ``try`` times every ``try_interval`` seconds (defined in CONF), as in ``connect``.
+        Executes ``on_failure`` after ``try`` attempts, and raises the last error."""
         backoff = self.interval
         for count in range(1,self.attempts+1):
             try:
-                self.conn = psycopg2.connect(self.args)
-                # self.conn.set_session(autocommit=True) # default is False.
-                LOG.debug("Connection successful")
-                return
+                while True:
+                    conn = self.pool.getconn()
+                    if conn.generation is None:  # new one
+                        conn.generation = self.generation
+                    if conn.generation == self.generation and not conn.closed:
+                        return conn
+                    LOG.debug('Closing a stale connection')
+                    self.pool.putconn(conn, close=True)
             except psycopg2.OperationalError as e:
-                LOG.debug("Database connection error: %r", e)
-            except psycopg2.InterfaceError as e:
-                LOG.debug("Invalid connection parameters: %r", e)
-                break # go to failure
-            LOG.debug("Connection attempt %d", count)
-            self.conn.close()
+                LOG.error("Database connection attempt %d failed: %r", count, e)
+                error = e
             sleep(backoff)
             backoff = (2 ** (count // 10)) * self.interval
-            # from  0 to  9, sleep 1 * self.interval secs
-            # from 10 to 19, sleep 2 * self.interval secs
-            # from 20 to 29, sleep 4 * self.interval secs ... etc
-            
+
         # fail to connect
         if callable(self.on_failure):
             LOG.error("Failed to connect.")
             self.on_failure()
+        raise error
 
-    def ping(self):
-        """Ping DB connection."""
-        if self.conn is None:
-            self.connect()
-        try:
-            with self.conn: # deal with autocommit
-                with self.conn.cursor() as cur:  # does not commit if error raised
-                    cur.execute('SELECT 1;')
-                    LOG.debug("Ping db successful")
-        except (psycopg2.OperationalError, psycopg2.InterfaceError) as e:
-            LOG.debug('Ping failed: %s', e)
-            self.connect(force=True)  # reconnect
+    def _closed(self, conn):
+        """``conn`` was closed under us: the other connections of its generation are probably closed too."""
+        with self.lock:
+            if conn.generation == self.generation:
+                LOG.warning('Database connection lost: renewing the idle connections')
+                self.generation += 1
 
     @contextmanager
     def cursor(self):
-        """Return DB Cursor, thus reusing it."""
-        self.ping()
-        with self.conn:
-            with self.conn.cursor() as cur:
-                yield cur
-                # closes cursor on exit
-            # transaction autocommit, but connection not closed
+        """Return a DB Cursor, on a connection from the pool.
+
+        The transaction is committed on exit, or rolled back on error."""
+        if self.pool is None:
+            self.connect()
+        with self.semaphore:  # the pool raises instead of waiting
+            conn = self._getconn()
+            broken = False
+            try:
+                with conn:
+                    with conn.cursor() as cur:
+                        yield cur
+                        # closes cursor on exit
+                    # transaction commit, but connection not closed
+            except (psycopg2.OperationalError, psycopg2.InterfaceError) as e:
+                LOG.debug('Discarding the connection: %r', e)
+                broken = True
+                e.connection_closed = bool(conn.closed)  # for retry_once
+                if conn.closed:
+                    self._closed(conn)
+                raise
+            finally:
+                self.pool.putconn(conn, close=(broken or bool(conn.closed)))
+
+    def _close(self):
+        if self.pool:
+            self.pool.closeall()
+            self.pool = None
 
     def close(self):
-        """Close DB Connection."""
+        """Close all DB Connections."""
         LOG.debug("Closing the database")
-        if self.conn:
-            self.conn.close()
-            self.conn = None
+        with self.lock:
+            self._close()
 
-    # Note, the code does not close the database connection nor the cursor
-    # if everything goes fine.
+
+def retry_once(func):
+    """Run ``func`` a second time, if its connection was closed the first time.
+
+    The failed connection was discarded, and the idle ones opened before it are
+    not used anymore: the second time uses a fresh connection (see ``DBConnection``).
+    Only for idempotent statements: the first run might have been committed
+    before the connection was lost. A canceled query (e.g. a statement timeout)
+    or a rolled back transaction (e.g. a deadlock) is not retried."""
+    @wraps(func)
+    def wrapper(*args, **kwargs):
+        try:
+            return func(*args, **kwargs)
+        except (psycopg2.OperationalError, psycopg2.InterfaceError) as e:
+            if (isinstance(e, (psycopg2.extensions.QueryCanceledError, psycopg2.extensions.TransactionRollbackError))
+                or not getattr(e, 'connection_closed', False)):
+                raise
+            LOG.warning('Database connection failed (%r): retrying %s', e, func.__name__)
+            return func(*args, **kwargs)
+    return wrapper
+
+
+class Listener(threading.Thread):
+    """Receives the notifications on some channels, on a dedicated connection.
+
+    ``on_connect(conn)`` is called after each (re)connection, once
+    listening, to reload what might have been missed meanwhile.
+    ``ready`` is set only while connected.
+    """
+
+    def __init__(self, channels, on_notify, on_connect=None, conf_section='db'):
+        """Listen to ``channels`` and pass the notifications to ``on_notify(channel, payload)``."""
+        super().__init__(name='db-listener', daemon=True)
+        self.channels = channels
+        self.on_notify = on_notify
+        self.on_connect = on_connect
+        self.conf_section = conf_section
+        self.ready = threading.Event()
+
+    def _listen(self, args):
+        conn = psycopg2.connect(args)
+        try:
+            conn.autocommit = True
+            with conn.cursor() as cur:
+                for channel in self.channels:
+                    cur.execute(f'LISTEN {channel};')
+            if callable(self.on_connect):
+                self.on_connect(conn)
+            self.ready.set()
+            LOG.debug('Listening to %s', ', '.join(self.channels))
+            while True:
+                if select.select([conn], [], [], 60) == ([], [], []):
+                    with conn.cursor() as cur:  # idle: make sure the connection is alive
+                        cur.execute('SELECT 1;')
+                conn.poll()
+                while conn.notifies:
+                    n = conn.notifies.pop(0)
+                    self.on_notify(n.channel, n.payload)
+        finally:
+            self.ready.clear()
+            conn.close()
+
+    def run(self):
+        args = CONF.getsensitive(self.conf_section, 'connection')
+        if isinstance(args, bytes):  # secret to str
+            args = args.decode()
+        interval = CONF.getint(self.conf_section, 'try_interval', fallback=1)
+        while True:
+            try:
+                self._listen(args)
+            except (psycopg2.OperationalError, psycopg2.InterfaceError) as e:
+                LOG.error('Database listener disconnected: %r', e)
+            sleep(interval)
+
+
+######################################
+#        Prepared statements         #
+######################################
+
+class PreparingConnection(psycopg2.extensions.connection):
+    """Connection remembering which statements it has prepared."""
+
+    def __init__(self, *args, **kwargs):
+        """Connect, with no prepared statements yet."""
+        super().__init__(*args, **kwargs)
+        self.prepared = set()
+        self.generation = None  # set by DBConnection, when first used
+
+
+class PreparedStatements():
+    """Registry of named server-side prepared statements.
+
+    A query is written with the usual ``%(name)s`` placeholders. It is
+    prepared on a connection the first time that connection runs it, and
+    executed by name afterwards, so Postgres parses and plans it only once
+    per session. Prepared statements survive transaction rollbacks.
+    """
+
+    _placeholder = re.compile(r'%\((\w+)\)s')
+
+    def __init__(self):
+        """Start with an empty registry."""
+        self.statements = {}
+        self.lock = threading.Lock()
+
+    def _register(self, name, query):
+        params = []
+        def number(m):
+            if m.group(1) not in params:
+                params.append(m.group(1))
+            return f'${params.index(m.group(1)) + 1}'
+        prepare = f'PREPARE lega_{name} AS ' + self._placeholder.sub(number, query).strip().rstrip(';')
+        execute = f'EXECUTE lega_{name}'
+        if params:
+            execute += '(' + ', '.join(f'%({p})s' for p in params) + ')'
+        return (prepare, execute)
+
+    def __call__(self, cur, name, query, params):
+        """Run ``query`` with ``params``, as the prepared statement ``name``."""
+        statement = self.statements.get(name)
+        if statement is None:
+            with self.lock:
+                statement = self.statements.setdefault(name, self._register(name, query))
+        prepare, execute = statement
+        conn = cur.connection
+        if name not in conn.prepared:
+            cur.execute(prepare)
+            conn.prepared.add(name)
+        cur.execute(execute, params)
+
+
+prepared = PreparedStatements()
 
 
 ######################################
@@ -137,44 +340,68 @@ atexit.register(lambda: connection.close())
 
 def insert_job(filename, user_id, encrypted_checksums=None):
     """Insert a new file entry and returns its id."""
-    correlation_id = _cid.get()
+    correlation_id = get_correlation_id()
     assert correlation_id, 'Eh? No correlation_id?'
     with connection.cursor() as cur:
         # We use only the sha256 if provided
         encrypted_sha256_checksum = get_sha256(encrypted_checksums)        
-        cur.execute('''SELECT * FROM local_ega.insert_job(%(correlation_id)s::text,
-                                                          %(filename)s::text,
-                                                          %(user_id)s::text,
-                                                          %(cs)s::text,
-                                                          %(cs_type)s);''', # don't type cast it here
-                    {'correlation_id': _cid.get(),
-                     'filename': filename,
-                     'user_id': user_id,
-                     'cs': encrypted_sha256_checksum,
-                     'cs_type': None if encrypted_sha256_checksum is None else 'SHA256'})
+        prepared(cur, 'insert_job', '''SELECT * FROM local_ega.insert_job(%(correlation_id)s::text,
+                                                                          %(filename)s::text,
+                                                                          %(user_id)s::text,
+                                                                          %(cs)s::text,
+                                                                          %(cs_type)s);''', # don't type cast it here
+                                    {'correlation_id': get_correlation_id(),
+                                     'filename': filename,
+                                     'user_id': user_id,
+                                     'cs': encrypted_sha256_checksum,
+                                     'cs_type': None if encrypted_sha256_checksum is None else 'SHA256'})
         _id = (cur.fetchone())[0]
         if _id is None:
             raise Exception('Database issue with insert_job')
         LOG.debug('Inserted job id %s for %s', _id, filename)
         return _id
 
+def insert_jobs(jobs):
+    """Insert several jobs in one round trip, and return their ids, in order.
+
+    ``jobs`` are (correlation_id, filename, user_id, encrypted_checksums) tuples.
+    As for insert_job, the id is -1 when the file is already being processed."""
+    checksums = [get_sha256(encrypted_checksums) for _, _, _, encrypted_checksums in jobs]
+    with connection.cursor() as cur:
+        prepared(cur, 'insert_jobs', '''SELECT * FROM local_ega.insert_jobs(%(correlation_ids)s::text[],
+                                                                            %(filenames)s::text[],
+                                                                            %(user_ids)s::text[],
+                                                                            %(cs)s::text[],
+                                                                            %(cs_types)s::local_ega.checksum_algorithm[]);''',
+                                     {'correlation_ids': [job[0] for job in jobs],
+                                      'filenames': [job[1] for job in jobs],
+                                      'user_ids': [job[2] for job in jobs],
+                                      'cs': checksums,
+                                      'cs_types': [None if cs is None else 'SHA256' for cs in checksums]})
+        ids = [row[0] for row in cur.fetchall()]
+        if len(ids) != len(jobs):
+            raise Exception('Database issue with insert_jobs')
+        LOG.debug('Inserted job ids %s', ids)
+        return ids
+
+@retry_once
 def cancel_job(filename, user_id, encrypted_checksums=None):
     """Cancel a job."""
-    correlation_id = _cid.get()
+    correlation_id = get_correlation_id()
     assert correlation_id, 'Eh? No correlation_id?'
     with connection.cursor() as cur:
         # We use only the sha256 if provided
         encrypted_sha256_checksum = get_sha256(encrypted_checksums)        
-        cur.execute('''SELECT * FROM local_ega.cancel_job(%(correlation_id)s::text,
-                                                          %(filename)s::text,
-                                                          %(user_id)s::text,
-                                                          %(cs)s::text,
-                                                          %(cs_type)s);''', # don't type cast it here
-                    {'correlation_id': _cid.get(),
-                     'filename': filename,
-                     'user_id': user_id,
-                     'cs': encrypted_sha256_checksum,
-                     'cs_type': None if encrypted_sha256_checksum is None else 'SHA256'})
+        prepared(cur, 'cancel_job', '''SELECT * FROM local_ega.cancel_job(%(correlation_id)s::text,
+                                                                          %(filename)s::text,
+                                                                          %(user_id)s::text,
+                                                                          %(cs)s::text,
+                                                                          %(cs_type)s);''', # don't type cast it here
+                                    {'correlation_id': get_correlation_id(),
+                                     'filename': filename,
+                                     'user_id': user_id,
+                                     'cs': encrypted_sha256_checksum,
+                                     'cs_type': None if encrypted_sha256_checksum is None else 'SHA256'})
         _id = (cur.fetchone())[0]
         if _id is None:
             raise Exception('Database issue with cancel_job')
@@ -182,84 +409,179 @@ def cancel_job(filename, user_id, encrypted_checksums=None):
         return _id
 
 
-def mark_verified(job_id, data, decrypted_payload_checksum):
-    correlation_id = _cid.get()
-    assert correlation_id, 'Eh? No correlation_id?'
-    LOG.debug('Setting status to staged for job %s', correlation_id)
-    LOG.debug('Saving staged info %s', data)
-    with connection.cursor() as cur:
-        cur.execute('UPDATE local_ega.jobs '
-                    'SET status = %(status)s, '
-                    '    staging_info = %(staging_info)s, '
-                    '    decrypted_payload_checksum = %(decrypted_payload_checksum)s ' # separating it for find_job
-                    'WHERE id = %(job_id)s;',
-                    {'status': 'VERIFIED', # no data-race is status is DISABLED or ERROR
-                     'job_id': job_id, 
-                     'staging_info': Json(data), # psycopg2 json adapter
-                     'decrypted_payload_checksum': decrypted_payload_checksum })
-
+@retry_once
 def find_job(filename, user_id, decrypted_payload_checksum):
     """Cancel a job."""
-    correlation_id = _cid.get()
+    correlation_id = get_correlation_id()
     assert correlation_id, 'Eh? No correlation_id?'
     with connection.cursor() as cur:
         # We use only the sha256 if provided
-        cur.execute('''SELECT id, staging_info 
-                       FROM local_ega.jobs 
-                       WHERE correlation_id = %(correlation_id)s AND 
-                             inbox_path = %(filename)s AND 
-                             user_id = %(user_id)s AND
-                             decrypted_payload_checksum = %(decrypted_payload_checksum)s''',
-                    {'correlation_id': _cid.get(),
-                     'filename': filename,
-                     'user_id': user_id,
-                     'decrypted_payload_checksum': decrypted_payload_checksum })
+        prepared(cur, 'find_job', '''SELECT id, staging_info 
+                                     FROM local_ega.jobs 
+                                     WHERE correlation_id = %(correlation_id)s AND 
+                                           inbox_path = %(filename)s AND 
+                                           user_id = %(user_id)s AND
+                                           decrypted_payload_checksum = %(decrypted_payload_checksum)s''',
+                                  {'correlation_id': get_correlation_id(),
+                                   'filename': filename,
+                                   'user_id': user_id,
+                                   'decrypted_payload_checksum': decrypted_payload_checksum })
         res = cur.fetchone()
         return res if res else None # psycopg2 json decoder for staging_info
 
+@retry_once
 def set_accession_id(job_id, accession_id):
     assert job_id, 'Eh? No job_id?'
     LOG.debug('Setting accession id for job %s to "%s"', job_id, accession_id)
     with connection.cursor() as cur:
-        cur.execute('UPDATE local_ega.jobs SET accession_id = %(accession_id)s WHERE id = %(job_id)s;',
-                    {'job_id': job_id, 'accession_id': accession_id })
+        prepared(cur, 'set_accession_id', 'UPDATE local_ega.main SET accession_id = %(accession_id)s WHERE id = %(job_id)s;',
+                                          {'job_id': job_id, 'accession_id': accession_id })
+
 
+# Return codes of finish_verification
+VERIFIED = 0
+CANCELED = 1
+SESSION_KEYS_USED = 2
 
-def insert_session_keys_checksums_sha256(job_id, session_keys_checksums):
-    LOG.debug('Record session keys checksums for job %s', job_id)
+def finish_verification(job_id, data, decrypted_payload_checksum, session_keys_checksums):
+    """Mark the job as verified and record its session keys, in one round trip.
+
+    It also checks the job is not canceled, and that the session keys are not used elsewhere.
+    Returns VERIFIED, CANCELED or SESSION_KEYS_USED."""
+    assert job_id, 'Eh? No job_id?'
+    LOG.debug('Finishing the verification of job %s', job_id)
     with connection.cursor() as cur:
-        cur.execute('SELECT * FROM local_ega.insert_session_keys_checksums_sha256(%(job_id)s, %(session_keys_checksums)s);',
-                    {'job_id': job_id,
-                     'session_keys_checksums': session_keys_checksums })
-                    
+        prepared(cur, 'finish_verification', 'SELECT local_ega.finish_verification(%(job_id)s, %(staging_info)s, %(checksum)s, %(sk_checksums)s);',
+                                             {'job_id': job_id,
+                                              'staging_info': Json(data), # psycopg2 json adapter
+                                              'checksum': decrypted_payload_checksum,
+                                              'sk_checksums': list(session_keys_checksums)})
+        return (cur.fetchone())[0]
 
 
+######################################
+#           Claim checks             #
+######################################
+
+def insert_payload(job_id, data):
+    """Record a new version of the message content of a job, and return its number."""
+    assert job_id, 'Eh? No job_id?'
+    with connection.cursor() as cur:
+        prepared(cur, 'insert_payload', 'SELECT local_ega.insert_payload(%(job_id)s, %(data)s);',
+                                        {'job_id': job_id,
+                                         'data': Json(data)})
+        version = (cur.fetchone())[0]
+        LOG.debug('Recorded version %s of job %s', version, job_id)
+        return version
+
+@lru_cache(maxsize=1024)
+@retry_once
+def _payload(job_id, version):
+    # As text: each caller gets its own copy (the workers modify their messages)
+    with connection.cursor() as cur:
+        prepared(cur, 'select_payload', 'SELECT data::text FROM local_ega.job_payloads WHERE job_id = %(job_id)s AND version = %(version)s;',
+                                        {'job_id': job_id,
+                                         'version': version})
+        res = cur.fetchone()
+    if res is None:
+        raise exceptions.PayloadNotFound(job_id, version)  # not cached
+    return res[0]
+
+def select_payload(job_id, version):
+    """Message content of a job, at that version. The versions never change: they are cached."""
+    return json.loads(_payload(job_id, version))
+
+
+class SessionKeysFilter():
+    """In-memory Bloom filter of the used session keys checksums.
+
+    It is loaded from the database at startup, and kept current with
+    the notifications on the ``session_keys`` channel (see db.sql).
+    A checksum not in the filter is surely not used; the database is
+    only queried when the filter says it might be.
+    While the listener is disconnected, all checks go to the database.
+    """
+
+    def __init__(self, capacity, error_rate):
+        """Prepare an empty filter."""
+        self.capacity = capacity
+        self.error_rate = error_rate
+        self.bloom = None
+        self.listener = Listener(['session_keys'], self.on_notify, on_connect=self.load)
+
+    def load(self, conn):
+        """Stream all the checksums into a new filter (we already listen to the new ones)."""
+        bloom = BloomFilter(self.capacity, self.error_rate)
+        conn.autocommit = False  # named cursors need a transaction
+        try:
+            with conn.cursor(name='session_keys_warmup') as cur:
+                cur.itersize = 10000
+                cur.execute('SELECT session_key_checksum FROM local_ega.session_key_checksums_sha256;')
+                for (checksum,) in cur:
+                    bloom.add(bytes(checksum))  # bytea comes as memoryview
+            conn.commit()
+        finally:
+            conn.autocommit = True
+        if bloom.count > self.capacity:
+            LOG.warning('Session keys filter over capacity (%d > %d): more false positives', bloom.count, self.capacity)
+        LOG.info('Session keys filter loaded with %d checksums', bloom.count)
+        self.bloom = bloom
+
+    def on_notify(self, channel, checksum):
+        self.bloom.add(bytes.fromhex(checksum))  # hex in the notification payload
+
+    def start(self):
+        self.listener.start()
+
+    def might_contain(self, checksums):
+        """False if none of the checksums is used. True if unsure, or not loaded."""
+        if not self.listener.ready.is_set():
+            return True
+        bloom = self.bloom
+        return any(checksum in bloom for checksum in checksums)
+
+
+session_keys_filter = None
+
+def start_session_keys_filter():
+    """Use a Bloom filter, in front of the database, for the session keys checks."""
+    global session_keys_filter
+    session_keys_filter = SessionKeysFilter(CONF.getint('DEFAULT', 'session_keys_capacity', fallback=10000000),
+                                            CONF.getfloat('DEFAULT', 'session_keys_error_rate', fallback=0.001))
+    session_keys_filter.start()
+
+
+@retry_once
 def has_session_keys_checksums(session_key_checksums):
     """Check if this session key is (likely) already used."""
     assert session_key_checksums, 'Eh? No checksum for the session keys?'
-    LOG.debug('Check if session keys (hash) are already used: %s', session_key_checksums)
+    LOG.debug('Check if session keys (hash) are already used: %s', [c.hex() for c in session_key_checksums])
+    if session_keys_filter and not session_keys_filter.might_contain(session_key_checksums):
+        LOG.debug('Session keys not in the filter')
+        return False
     with connection.cursor() as cur:
-        LOG.debug('SELECT * FROM local_ega.has_session_keys_checksums_sha256(%s);', session_key_checksums)
-        cur.execute('SELECT * FROM local_ega.has_session_keys_checksums_sha256(%(sk_checksums)s);',
-                    {'sk_checksums': list(session_key_checksums)})
+        prepared(cur, 'has_session_keys', 'SELECT * FROM local_ega.has_session_keys_checksums_sha256(%(sk_checksums)s);',
+                                          {'sk_checksums': list(session_key_checksums)})
         found = cur.fetchone()
         LOG.debug("Check session keys: %s", found)
         return (found and found[0])  # not none and check boolean value
 
+@retry_once
 def is_canceled(job_id):
     """Check if this job is marked as not canceled."""
     assert job_id, 'Eh? No job_id?'
     res = False
     with connection.cursor() as cur:
-        cur.execute("SELECT EXISTS(SELECT 1 FROM local_ega.jobs WHERE id = %(job_id)s AND (status = ANY(%(statuses)s)));",
-                    {'job_id': job_id,
-                    'statuses': ['CANCELED', 'ERROR', 'COMPLETED'] })   # ie: ongoing job
+        # The statuses are literals, so that only the terminal partitions are planned
+        prepared(cur, 'is_canceled', "SELECT EXISTS(SELECT 1 FROM local_ega.job_state WHERE job_id = %(job_id)s AND status IN ('CANCELED', 'ERROR', 'COMPLETED'));",
+                                     {'job_id': job_id })
         found = cur.fetchone()
         res = found and found[0] # not none and check boolean value
     return res
 
 def check_canceled(func):
     @wraps(func)
+    @watch_canceled
     def decorator(*args, **kwargs):
         data = args[-1] # last one
         job_id = int(data['job_id'])
@@ -273,37 +595,139 @@ def check_canceled(func):
     return decorator
 
 
+class CancellationWatcher():
+    """Flags the running jobs that get canceled.
+
+    ``cancel_job`` and ``insert_job`` notify the ``job_canceled`` channel
+    with the canceled job ids (see db.sql). The running jobs are registered
+    here, with an Event set upon notification.
+    """
+
+    def __init__(self):
+        """Nothing watched yet."""
+        self.events = {}
+        self.lock = threading.Lock()
+        self.listener = Listener(['job_canceled'], self.on_notify, on_connect=self.recheck)
+
+    def recheck(self, conn):
+        """Catch up with the notifications missed while disconnected."""
+        with self.lock:
+            job_ids = list(self.events)
+        if not job_ids:
+            return
+        with conn.cursor() as cur:
+            cur.execute("SELECT job_id FROM local_ega.job_state WHERE job_id = ANY(%(job_ids)s) AND status = 'CANCELED';",
+                        {'job_ids': job_ids})
+            for (job_id,) in cur.fetchall():
+                self.on_notify('job_canceled', job_id)
+
+    def on_notify(self, channel, job_id):
+        with self.lock:
+            event = self.events.get(int(job_id))
+        if event is not None:
+            LOG.info('Job %s canceled', job_id)
+            event.set()
+
+    def start(self):
+        self.listener.start()
+
+    @contextmanager
+    def watch(self, job_id):
+        event = threading.Event()
+        with self.lock:
+            self.events[job_id] = event
+        try:
+            yield event
+        finally:
+            with self.lock:
+                if self.events.get(job_id) is event:
+                    del self.events[job_id]
+
+
+cancellation_watcher = None
+
+def start_cancellation_watcher():
+    """Listen to the job cancellations, to stop the running jobs."""
+    global cancellation_watcher
+    if cancellation_watcher is not None:  # already, for another worker in the same process
+        return
+    cancellation_watcher = CancellationWatcher()
+    cancellation_watcher.start()
+
+
+# (job id, threading.Event set when it is canceled), for the job running in this thread
+_canceled = ContextVar('canceled', default=None)
+
+def watch_canceled(func):
+    """Flag the running job when it is canceled, while ``func`` runs.
+
+    ``func`` checks it with ``raise_if_canceled()`` and stops with JobCanceled:
+    the message is then consumed, and the staged file removed.
+    """
+    @wraps(func)
+    def decorator(*args, **kwargs):
+        data = args[-1] # last one
+        job_id = int(data['job_id'])
+        if cancellation_watcher is None:
+            return func(*args, **kwargs)
+        token = None
+        try:
+            with cancellation_watcher.watch(job_id) as event:
+                token = _canceled.set((job_id, event))
+                return func(*args, **kwargs)
+        except exceptions.JobCanceled:
+            LOG.warning('Job %s was canceled: stopped', job_id)
+            staged_path = data.get('staged_path')
+            if staged_path:
+                try:
+                    os.remove(staged_path)
+                except OSError as oe:
+                    LOG.warning('Skipping removal of %s, because %s', staged_path, oe)
+        finally:
+            if token is not None:
+                _canceled.reset(token)
+    return decorator
+
+
+def raise_if_canceled():
+    """Raise JobCanceled if the running job was canceled. Cheap: no database access."""
+    watched = _canceled.get()
+    if watched is not None and watched[1].is_set():
+        raise exceptions.JobCanceled(watched[0])
+
+
 
 def set_error(error, from_user=False):
     """Record error to database."""
-    correlation_id = _cid.get()
-    assert correlation_id, 'Eh? No correlation_id?'
+    job = current_job()
+    assert job and job.job_id, 'Eh? No job_id?'
     assert error, 'Eh? No error?'
-    LOG.debug('Setting error for %s: %s | Cause: %s', correlation_id, error, error.__cause__)
+    LOG.debug('Setting error for job %s: %s | Cause: %s', job.job_id, error, error.__cause__)
     with connection.cursor() as cur:
-        cur.execute('''SELECT * FROM local_ega.insert_error(%(correlation_id)s,
-                                                            %(h)s,
-                                                            %(etype)s,
-                                                            %(msg)s,
-                                                            %(from_user)s);''',
-                    {'h': gethostname(),
-                     'etype': error.__class__.__name__,
-                     'msg': repr(error),
-                     'correlation_id': correlation_id,
-                     'from_user': from_user})
+        prepared(cur, 'insert_error', '''SELECT * FROM local_ega.insert_error(%(job_id)s,
+                                                                              %(h)s,
+                                                                              %(etype)s,
+                                                                              %(msg)s,
+                                                                              %(from_user)s);''',
+                                      {'h': gethostname(),
+                                       'etype': error.__class__.__name__,
+                                       'msg': repr(error),
+                                       'job_id': job.job_id,
+                                       'from_user': from_user})
         return cur.fetchall()
 
+@retry_once
 def set_status(job_id, status):
     """Set job status."""
     assert job_id, 'Eh? No job_id?'
     LOG.debug('Setting job %s to "%s"', job_id, status)
     with connection.cursor() as cur:
-        cur.execute('UPDATE local_ega.jobs '
-                    'SET status = %(status)s '
-                    'WHERE id = %(job_id)s;',
-                    {'status': status,
-                     'job_id': job_id })
-        # Note: no data-race is file status is DISABLED or ERROR
+        prepared(cur, 'set_status', 'UPDATE local_ega.job_state '
+                                    'SET status = %(status)s, last_modified = clock_timestamp() ' # HOT update
+                                    "WHERE job_id = %(job_id)s AND status NOT IN ('ERROR', 'CANCELED', 'COMPLETED');",
+                                    {'status': status,
+                                     'job_id': job_id })
+        # Note: only the active partition is touched, and a job canceled or in error stays so
 
 
 
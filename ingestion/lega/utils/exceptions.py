@@ -118,6 +118,25 @@ class ChecksumsNotMatching(Exception):
     def __repr__(self):
         return f'Checksums for {self.path} do not match:\n* {self.md1}\n* {self.md2}'
 
+class JobCanceled(Exception):
+    """Raised when the job is canceled while it is processed."""
+
+    def __init__(self, job_id):
+        self.job_id = job_id
+
+    def __str__(self):
+        return f'Job {self.job_id} canceled'
+
+class PayloadNotFound(Exception):
+    """Raised when the content of a claim-check message is not in the database."""
+
+    def __init__(self, job_id, version):
+        self.job_id = job_id
+        self.version = version
+
+    def __str__(self):
+        return f'No version {self.version} of the content of job {self.job_id}'
+
 class RejectMessage(Exception):
     pass
 
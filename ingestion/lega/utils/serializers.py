@@ -0,0 +1,79 @@
+"""Message serializers, chosen by content type.
+
+* ``application/json``: compact JSON, with orjson if installed (else the standard library)
+* ``application/msgpack``: MessagePack, if msgpack is installed. Smaller and faster,
+  but only for the LocalEGA-internal messages
+
+The other content types are left as is.
+"""
+
+import json
+
+try:
+    import orjson
+except ImportError:
+    orjson = None
+
+try:
+    import msgpack
+except ImportError:
+    msgpack = None
+
+JSON = 'application/json'
+MSGPACK = 'application/msgpack'
+
+
+class DecodeError(ValueError):
+    """Raised when a message body can't be decoded."""
+
+
+def _json_dumps(content):
+    if orjson is not None:
+        return orjson.dumps(content)
+    return json.dumps(content, separators=(',', ':')).encode()
+
+
+def _json_loads(body):
+    return (orjson or json).loads(body)  # both take bytes or str
+
+
+def _msgpack_dumps(content):
+    return msgpack.packb(content, use_bin_type=True)
+
+
+def _msgpack_loads(body):
+    if isinstance(body, str):  # decoded by the AMQP client, as it was valid UTF-8: lossless
+        body = body.encode()
+    return msgpack.unpackb(body, raw=False)
+
+
+_serializers = {
+    JSON: (_json_dumps, _json_loads),
+    MSGPACK: (_msgpack_dumps, _msgpack_loads),
+}
+
+
+def check(content_type):
+    """Bark early if ``content_type`` can't be used for publishing."""
+    if content_type not in _serializers:
+        raise ValueError(f'Unsupported content type: {content_type}')
+    if content_type == MSGPACK and msgpack is None:
+        raise ValueError('msgpack is not installed')
+
+
+def dumps(content_type, content):
+    """Encode ``content`` as ``content_type``, to bytes."""
+    return _serializers[content_type][0](content)
+
+
+def loads(content_type, body):
+    """Decode ``body`` according to its ``content_type``. Unknown content types are returned as is."""
+    serializer = _serializers.get(content_type)
+    if serializer is None:
+        return body
+    if content_type == MSGPACK and msgpack is None:
+        raise DecodeError('msgpack is not installed')
+    try:
+        return serializer[1](body)
+    except Exception as e:  # each library has its own errors
+        raise DecodeError(f'Malformed {content_type} message: {e}') from e
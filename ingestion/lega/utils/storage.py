@@ -0,0 +1,231 @@
+"""Archive storage backends.
+
+A backend is selected by the scheme of the ``location`` in its
+configuration section: a plain path (or ``file://``) for a POSIX
+filesystem, ``s3://bucket/prefix`` for an S3 object store.
+
+Each backend has:
+
+* ``put(name)``: a writer, with ``write()``, ``close()`` to commit and ``abort()``
+* ``get(name)``: a binary file-like object, for reading
+* ``stat(name)``: the size of the stored object
+* ``verify(name, md_type)``: the checksum of the stored object, re-read from the storage
+* ``location(name)``: the path or URL recorded in the message and the database
+"""
+
+import os
+import logging
+import hashlib
+import mmap
+import base64
+import threading
+from concurrent.futures import ThreadPoolExecutor
+from urllib.parse import urlsplit
+
+from ..conf import CONF
+from . import mkdirs
+
+LOG = logging.getLogger(__name__)
+
+
+######################################
+#              POSIX                 #
+######################################
+
+class POSIXWriter():
+    """Buffered file, fsync'ed on close."""
+
+    def __init__(self, path):
+        """Open ``path`` for writing, creating its parent directories."""
+        mkdirs(path)
+        self.path = path
+        self.f = open(path, 'wb')
+
+    def write(self, data):
+        return self.f.write(data)
+
+    def close(self):
+        self.f.flush()
+        os.fsync(self.f.fileno())
+        self.f.close()
+
+    def abort(self):
+        self.f.close()
+        try:
+            os.remove(self.path)  # no partial file left behind
+        except OSError as e:
+            LOG.warning('Could not remove %s: %r', self.path, e)
+
+
+def _open_direct(path):
+    """Open ``path`` bypassing the page cache.
+
+    O_DIRECT if the filesystem supports it, else we drop the cached pages first."""
+    try:
+        return open(os.open(path, os.O_RDONLY | os.O_DIRECT), 'rb', buffering=0)
+    except OSError as e:  # EINVAL: tmpfs, some overlays...
+        LOG.debug('O_DIRECT not supported for %s: %r', path, e)
+    f = open(path, 'rb', buffering=0)
+    os.posix_fadvise(f.fileno(), 0, 0, os.POSIX_FADV_DONTNEED)
+    return f
+
+
+class POSIXStorage():
+    """Files under a directory."""
+
+    def __init__(self, prefix, buffer_size):
+        """Store the files under ``prefix``."""
+        self.prefix = prefix
+        self.buffer_size = buffer_size
+
+    def location(self, name):
+        return os.path.join(self.prefix, name.strip('/'))
+
+    def put(self, name):
+        return POSIXWriter(self.location(name))
+
+    def get(self, name):
+        return open(self.location(name), 'rb')
+
+    def stat(self, name):
+        return os.stat(self.location(name)).st_size
+
+    def verify(self, name, md_type):
+        """Re-read the file from the disk, not from the page cache."""
+        md = hashlib.new(md_type)
+        buf = mmap.mmap(-1, self.buffer_size)  # page-aligned, as O_DIRECT requires
+        try:
+            with _open_direct(self.location(name)) as f:
+                while True:
+                    n = f.readinto(buf)
+                    if not n:
+                        break
+                    md.update(memoryview(buf)[:n])
+        finally:
+            buf.close()
+        return md.hexdigest()
+
+
+######################################
+#                 S3                 #
+######################################
+
+class S3Writer():
+    """Multipart upload, with the parts sent in parallel.
+
+    Each part carries its MD5, so S3 checks it on arrival.
+    At most ``upload_workers`` parts are in flight per storage: ``write`` blocks until one is sent."""
+
+    def __init__(self, storage, key):
+        """Start a multipart upload for ``key``."""
+        self.storage = storage
+        self.key = key
+        self.part_size = storage.part_size
+        self.buf = bytearray()
+        self.futures = []
+        self.upload_id = storage.client.create_multipart_upload(Bucket=storage.bucket, Key=key)['UploadId']
+
+    def _upload(self, number, data):
+        try:
+            digest = base64.b64encode(hashlib.md5(data).digest()).decode()
+            res = self.storage.client.upload_part(Bucket=self.storage.bucket, Key=self.key,
+                                                  UploadId=self.upload_id, PartNumber=number,
+                                                  Body=data, ContentMD5=digest)
+            return {'PartNumber': number, 'ETag': res['ETag']}
+        finally:
+            self.storage.slots.release()
+
+    def _send(self):
+        data, self.buf = self.buf, bytearray()  # handed over, not copied
+        number = len(self.futures) + 1
+        self.storage.slots.acquire()
+        try:
+            self.futures.append(self.storage.pool.submit(self._upload, number, data))
+        except Exception:
+            self.storage.slots.release()
+            raise
+
+    def write(self, data):
+        self.buf += data
+        if len(self.buf) >= self.part_size:
+            self._send()
+        return len(data)
+
+    def close(self):
+        if self.buf or not self.futures:  # the last part can be smaller, or even empty
+            self._send()
+        parts = [f.result() for f in self.futures]
+        self.storage.client.complete_multipart_upload(Bucket=self.storage.bucket, Key=self.key,
+                                                      UploadId=self.upload_id,
+                                                      MultipartUpload={'Parts': parts})
+
+    def abort(self):
+        for f in self.futures:
+            f.exception()  # wait
+        self.storage.client.abort_multipart_upload(Bucket=self.storage.bucket, Key=self.key,
+                                                   UploadId=self.upload_id)
+
+
+class S3Storage():
+    """Objects under a prefix in a bucket."""
+
+    def __init__(self, url, conf_section, buffer_size):
+        """Connect to the bucket in ``url``, with the options of ``conf_section``."""
+        import boto3  # only needed for S3
+        u = urlsplit(url)
+        self.bucket = u.netloc
+        self.prefix = u.path.strip('/')
+        self.buffer_size = buffer_size
+        self.part_size = max(5 * 1024 * 1024,  # S3 minimum, except for the last part
+                             CONF.getint(conf_section, 'part_size', fallback=64 * 1024 * 1024))
+        access_key = CONF.getsensitive(conf_section, 'access_key', fallback=None)
+        secret_key = CONF.getsensitive(conf_section, 'secret_key', fallback=None)
+        self.client = boto3.client('s3',
+                                   endpoint_url=CONF.get(conf_section, 'endpoint_url', fallback=None),  # for MinIO
+                                   region_name=CONF.get(conf_section, 'region', fallback=None),
+                                   aws_access_key_id=access_key.decode() if isinstance(access_key, bytes) else access_key,
+                                   aws_secret_access_key=secret_key.decode() if isinstance(secret_key, bytes) else secret_key)
+        upload_workers = CONF.getint(conf_section, 'upload_workers', fallback=8)
+        self.pool = ThreadPoolExecutor(max_workers=upload_workers, thread_name_prefix='s3')
+        self.slots = threading.BoundedSemaphore(upload_workers)  # parts in flight, in memory
+
+    def key(self, name):
+        name = name.strip('/')
+        return f'{self.prefix}/{name}' if self.prefix else name
+
+    def location(self, name):
+        return f's3://{self.bucket}/{self.key(name)}'
+
+    def put(self, name):
+        return S3Writer(self, self.key(name))
+
+    def get(self, name):
+        return self.client.get_object(Bucket=self.bucket, Key=self.key(name))['Body']
+
+    def stat(self, name):
+        return self.client.head_object(Bucket=self.bucket, Key=self.key(name))['ContentLength']
+
+    def verify(self, name, md_type):
+        md = hashlib.new(md_type)
+        body = self.get(name)
+        try:
+            for chunk in body.iter_chunks(self.buffer_size):
+                md.update(chunk)
+        finally:
+            body.close()
+        return md.hexdigest()
+
+
+######################################
+#             Selection              #
+######################################
+
+def from_config(conf_section, buffer_size):
+    """Backend for the ``location`` of ``conf_section``, picked by its scheme."""
+    location = CONF.get(conf_section, 'location')
+    scheme = urlsplit(location).scheme
+    if scheme == 's3':
+        return S3Storage(location, conf_section, buffer_size)
+    if scheme in ('', 'file'):
+        return POSIXStorage(location[7:] if scheme == 'file' else location, buffer_size)
+    raise ValueError(f'Unsupported storage: {location}')
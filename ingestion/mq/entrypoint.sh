@@ -21,6 +21,24 @@ EOF
 chown rabbitmq:rabbitmq /etc/rabbitmq/rabbitmq.conf
 chmod 600 /etc/rabbitmq/rabbitmq.conf
 
+# Delayed retries: a message rejected by a worker (see [broker] retries) is published to the retry
+# exchange, with its attempt number in the lega-attempt header, and the name of its queue as routing key.
+# It waits in retry.<attempt> (retry.<levels> for the later attempts) and, once expired, the default
+# exchange routes it back to its queue. The delays double: MQ_RETRY_DELAY ms, then twice as long, etc.
+# After the last attempt, the worker sends it to the dead-letters queue instead, through the dlx exchange.
+MQ_RETRY_LEVELS=${MQ_RETRY_LEVELS:-8}
+MQ_RETRY_DELAY=${MQ_RETRY_DELAY:-1000}
+RETRY_QUEUES=""
+RETRY_BINDINGS=""
+for (( n=1; n<=MQ_RETRY_LEVELS; n++ )); do
+    RETRY_QUEUES+="    {\"name\": \"retry.${n}\", \"vhost\": \"/\", \"durable\": true, \"auto_delete\": false, \"arguments\":{\"x-message-ttl\": $(( MQ_RETRY_DELAY << (n - 1) )), \"x-dead-letter-exchange\": \"\"}},"$'\n'
+    if (( n < MQ_RETRY_LEVELS )); then
+	RETRY_BINDINGS+="    { \"source\":\"retry\", \"vhost\": \"/\", \"destination\":\"retry.${n}\", \"destination_type\":\"queue\", \"routing_key\":\"\", \"arguments\":{\"x-match\": \"all\", \"lega-attempt\": \"${n}\"}},"$'\n'
+    else # the later attempts too: not matched by the retry exchange, they go to its alternate exchange
+	RETRY_BINDINGS+="    { \"source\":\"retry.last\", \"vhost\": \"/\", \"destination\":\"retry.${n}\", \"destination_type\":\"queue\", \"routing_key\":\"\", \"arguments\":{}},"$'\n'
+    fi
+done
+
 cat > /etc/rabbitmq/definitions.json <<EOF
 {
   "users": [
@@ -55,11 +73,15 @@ cat > /etc/rabbitmq/definitions.json <<EOF
     {"name": "backup2",   "vhost": "/", "durable": true, "auto_delete": false, "arguments":{}},
     {"name": "save2db",   "vhost": "/", "durable": true, "auto_delete": false, "arguments":{}},
     {"name": "errors",    "vhost": "/", "durable": true, "auto_delete": false, "arguments":{}},
+${RETRY_QUEUES}    {"name": "dead-letters", "vhost": "/", "durable": true, "auto_delete": false, "arguments":{}},
     {"name": "to_cega",   "vhost": "/", "durable": true, "auto_delete": false, "arguments":{}}
   ],
   "exchanges": [
     {"name":"cega", "vhost":"/", "type":"topic", "durable":true, "auto_delete":false, "internal":false, "arguments":{}}, 
-    {"name":"lega", "vhost":"/", "type":"topic", "durable":true, "auto_delete":false, "internal":false, "arguments":{}}
+    {"name":"lega", "vhost":"/", "type":"topic", "durable":true, "auto_delete":false, "internal":false, "arguments":{}},
+    {"name":"retry", "vhost":"/", "type":"headers", "durable":true, "auto_delete":false, "internal":false, "arguments":{"alternate-exchange": "retry.last"}},
+    {"name":"retry.last", "vhost":"/", "type":"fanout", "durable":true, "auto_delete":false, "internal":true, "arguments":{}},
+    {"name":"dlx", "vhost":"/", "type":"fanout", "durable":true, "auto_delete":false, "internal":false, "arguments":{}}
   ], 
   "bindings": [
     { "source":"lega", "vhost": "/", "destination":"ingest", "destination_type":"queue", "routing_key":"ingest", "arguments":{}},
@@ -68,6 +90,7 @@ cat > /etc/rabbitmq/definitions.json <<EOF
     { "source":"lega", "vhost": "/", "destination":"backup2", "destination_type":"queue", "routing_key":"backup2", "arguments":{}},
     { "source":"lega", "vhost": "/", "destination":"save2db", "destination_type":"queue", "routing_key":"save2db", "arguments":{}},
     { "source":"lega", "vhost": "/", "destination":"errors", "destination_type":"queue", "routing_key":"error", "arguments":{}},
+${RETRY_BINDINGS}    { "source":"dlx", "vhost": "/", "destination":"dead-letters", "destination_type":"queue", "routing_key":"", "arguments":{}},
     { "source":"cega", "vhost": "/", "destination":"to_cega", "destination_type":"queue", "routing_key":"#", "arguments":{}}
   ]
 }
@@ -25,6 +25,8 @@ Users are handled through Central EGA, directly.
               'ega-backup = lega.backup:main',
               'ega-cleanup = lega.cleanup:main',
               'ega-save2db = lega.save2db:main',
+              'ega-maintenance = lega.maintenance:main',
+              'ega-pipeline = lega.pipeline:main',
               'ega-conf = lega.conf.__main__:main',
           ]
       },
@@ -36,4 +38,9 @@ Users are handled through Central EGA, directly.
           'PyYaml',
           'boto3',
           'crypt4gh>=1.3',
-      ])
+      ],
+      extras_require={
+          'fast': ['orjson'],  # JSON messages
+          'msgpack': ['msgpack>=1.0'],  # [broker] content_type = application/msgpack
+          'asyncio': ['aio-pika>=6.7,<7', 'aiopg>=1.0'],  # [broker] runtime = asyncio
+      })
@@ -0,0 +1,45 @@
+import unittest
+from unittest import mock
+
+from lega.dispatcher import work
+from lega.utils.exceptions import RejectMessage
+
+
+class testDispatcher(unittest.TestCase):
+    """Dispatcher.
+
+    Testing the dispatching of the CentralEGA messages.
+    """
+
+    @mock.patch('lega.dispatcher.get_correlation_id')
+    @mock.patch('lega.dispatcher.publish')
+    @mock.patch('lega.dispatcher.db', autospec=True)
+    def test_cancel(self, mock_db, mock_publish, mock_correlation_id):
+        """Test a cancel message, should cancel the job with its checksums."""
+        mock_correlation_id.return_value = 'corr-id'
+        checksums = [{'type': 'sha256', 'value': 'abcd'}, {'type': 'md5', 'value': 'ef01'}]
+        work({'type': 'cancel', 'filepath': 'file.c4gh', 'user': 'user_id', 'encrypted_checksums': checksums})
+        mock_db.cancel_job.assert_called_once_with('file.c4gh', 'user_id', encrypted_checksums=checksums)
+        mock_publish.assert_not_called()
+
+    @mock.patch('lega.dispatcher.get_correlation_id')
+    @mock.patch('lega.dispatcher.publish')
+    @mock.patch('lega.dispatcher.db', autospec=True)
+    def test_cancel_no_checksums(self, mock_db, mock_publish, mock_correlation_id):
+        """Test a cancel message without checksums."""
+        mock_correlation_id.return_value = 'corr-id'
+        work({'type': 'cancel', 'filepath': 'file.c4gh', 'user': 'user_id'})
+        mock_db.cancel_job.assert_called_once_with('file.c4gh', 'user_id', encrypted_checksums=None)
+
+    @mock.patch('lega.dispatcher.get_correlation_id')
+    @mock.patch('lega.dispatcher.db', autospec=True)
+    def test_invalid_type(self, mock_db, mock_correlation_id):
+        """Test an unknown message type, should be rejected."""
+        mock_correlation_id.return_value = 'corr-id'
+        with self.assertRaises(RejectMessage):
+            work({'type': 'unknown'})
+        mock_db.cancel_job.assert_not_called()
+
+
+if __name__ == '__main__':
+    unittest.main()
@@ -1,10 +1,72 @@
 import unittest
-from lega.ingest import main, work
+import io
+import os
+import hashlib
+import threading
+from concurrent.futures import ThreadPoolExecutor
+from lega.ingest import main, work, body_decrypt_parallel, PipelinedPayloadFile, VerifyPayloadFile
 from unittest import mock
-from testfixtures import tempdir
+from testfixtures import tempdir, TempDirectory
 # from pathlib import PosixPath
 from . import c4gh_data
 from lega.utils.exceptions import FromUser
+from crypt4gh.lib import body_decrypt, SEGMENT_SIZE, CIPHER_SEGMENT_SIZE
+from crypt4gh.header import deconstruct
+from crypt4gh.keys import get_private_key
+from nacl.bindings import crypto_aead_chacha20poly1305_ietf_encrypt
+
+
+def session_keys():
+    """Decrypt the header of the test file, with the EGA key, and return its session keys."""
+    with TempDirectory() as keydir:
+        keypath = keydir.write('ega.sec', c4gh_data.EGA_SECKEY.encode())
+        seckey = get_private_key(keypath, lambda: c4gh_data.EGA_PASSPHRASE)
+    infile = io.BytesIO(bytes.fromhex(c4gh_data.ENC_FILE))
+    keys, _ = deconstruct(infile, [(0, seckey, None)])
+    return keys, infile.read()  # and the payload
+
+
+def encrypt(data, session_key):
+    """Encrypt ``data`` as a Crypt4GH payload: segments of a nonce, the ciphertext and its MAC."""
+    payload = bytearray()
+    for i in range(0, len(data), SEGMENT_SIZE):
+        nonce = os.urandom(12)
+        payload += nonce + crypto_aead_chacha20poly1305_ietf_encrypt(data[i:i + SEGMENT_SIZE], None, nonce, session_key)
+    return bytes(payload)
+
+
+def decrypt(decrypt_all, infile, keys):
+    """Run ``decrypt_all(infile, keys, output)`` and return what went to ``output``."""
+    chunks = []
+
+    def output():
+        while True:
+            chunks.append((yield))
+
+    out = output()
+    next(out)
+    decrypt_all(infile, keys, out)
+    return b''.join(chunks)
+
+
+def body_decrypt_all(infile, keys, output):
+    """The plain crypt4gh decryption, as the reference."""
+    body_decrypt(infile, keys, output, 0)
+
+
+class ShortReads():
+    """File returning at most ``size`` bytes per read, as pipes and network filesystems can."""
+
+    def __init__(self, data, size):
+        self.f = io.BytesIO(data)
+        self.size = size
+
+    def read(self, n=-1):
+        return self.f.read(self.size if n < 0 else min(n, self.size))
+
+    def readinto(self, b):
+        with memoryview(b) as mv:
+            return self.f.readinto(mv[:self.size])
 
 
 class testIngest(unittest.TestCase):
@@ -113,3 +175,244 @@ class testIngest(unittest.TestCase):
         mock_set_error.assert_called()
         mock_publish.assert_called()
         filedir.cleanup()
+
+
+class testBodyDecryptParallel(unittest.TestCase):
+    """Parallel decryption.
+
+    Comparing body_decrypt_parallel with crypt4gh's body_decrypt.
+    """
+
+    def setUp(self):
+        """Get the session keys of the test file."""
+        self.keys, self.payload = session_keys()
+        self.pool = ThreadPoolExecutor(max_workers=4, thread_name_prefix='decrypt')
+
+    def tearDown(self):
+        """Stop the decryption threads."""
+        self.pool.shutdown(wait=True)
+
+    def parallel(self, window=4, buffer_size=CIPHER_SEGMENT_SIZE):
+        def decrypt_all(infile, keys, output):
+            body_decrypt_parallel(infile, keys, output, self.pool, window, buffer_size=buffer_size)
+        return decrypt_all
+
+    def assertSameDecryption(self, payload, decrypt_all, infile=None):
+        expected = decrypt(body_decrypt_all, io.BytesIO(payload), self.keys)
+        result = decrypt(decrypt_all, infile or io.BytesIO(payload), self.keys)
+        self.assertEqual(expected, result)
+        self.assertEqual(hashlib.sha256(expected).hexdigest(), hashlib.sha256(result).hexdigest())
+        return result
+
+    def test_test_file(self):
+        """Test the payload of the test file."""
+        result = self.assertSameDecryption(self.payload, self.parallel())
+        self.assertEqual(c4gh_data.ORG_FILE, result)
+
+    def test_segments(self):
+        """Test a payload of several whole segments, with more segments than the window."""
+        data = os.urandom(10 * SEGMENT_SIZE)
+        result = self.assertSameDecryption(encrypt(data, self.keys[0]), self.parallel(window=2))
+        self.assertEqual(data, result)
+
+    def test_partial_segment(self):
+        """Test a payload ending with a partial segment, read in batches of several segments."""
+        data = os.urandom(5 * SEGMENT_SIZE + 1234)
+        result = self.assertSameDecryption(encrypt(data, self.keys[0]), self.parallel(buffer_size=3 * CIPHER_SEGMENT_SIZE))
+        self.assertEqual(data, result)
+
+    def test_empty(self):
+        """Test an empty payload."""
+        self.assertEqual(b'', self.assertSameDecryption(b'', self.parallel()))
+
+    def test_short_reads(self):
+        """Test short reads, not aligned with the segments."""
+        payload = encrypt(os.urandom(3 * SEGMENT_SIZE + 10), self.keys[0])
+        self.assertSameDecryption(payload, self.parallel(buffer_size=2 * CIPHER_SEGMENT_SIZE), ShortReads(payload, 1000))
+
+    def test_corrupted_segment(self):
+        """Test a corrupted segment in the middle, should raise and leave no thread behind."""
+        payload = bytearray(encrypt(os.urandom(6 * SEGMENT_SIZE), self.keys[0]))
+        payload[3 * CIPHER_SEGMENT_SIZE + 100] ^= 0xFF
+        with self.assertRaises(ValueError):
+            decrypt(self.parallel(window=2), io.BytesIO(payload), self.keys)
+        self.pool.shutdown(wait=True)
+        self.assertEqual([], [t for t in threading.enumerate() if t.name.startswith('decrypt')])
+
+
+class FailingWriter():
+    """Destination file failing after ``size`` bytes."""
+
+    def __init__(self, size):
+        self.size = size
+        self.written = 0
+
+    def write(self, data):
+        if self.written + len(data) > self.size:
+            raise OSError('No space left on device')
+        self.written += len(data)
+
+
+def payload_threads():
+    return [t for t in threading.enumerate() if t.name.startswith('payload-')]
+
+
+class testPipelinedPayloadFile(unittest.TestCase):
+    """Pipelined payload file.
+
+    Copying and checksumming the payload in separate threads, while it is decrypted.
+    """
+
+    def setUp(self):
+        """Get the session keys of the test file."""
+        self.keys, _ = session_keys()
+        self.pool = ThreadPoolExecutor(max_workers=4, thread_name_prefix='decrypt')
+
+    def tearDown(self):
+        """Stop the decryption threads, and check the stages are gone."""
+        self.pool.shutdown(wait=True)
+        self.assertEqual([], payload_threads())
+
+    def parallel(self, infile, keys, output):
+        body_decrypt_parallel(infile, keys, output, self.pool, 4)
+
+    def check(self, payload, decrypt_all=body_decrypt_all, copy=True, **kwargs):
+        """Decrypt ``payload`` through the pipeline, and compare with plain body_decrypt."""
+        dst = io.BytesIO() if copy else None
+        md = hashlib.sha256()
+        with PipelinedPayloadFile(io.BytesIO(payload), dst, md, **kwargs) as vfile:
+            result = decrypt(decrypt_all, vfile, self.keys)
+        expected = decrypt(body_decrypt_all, io.BytesIO(payload), self.keys)
+        self.assertEqual(expected, result)
+        self.assertEqual(hashlib.sha256(expected).hexdigest(), hashlib.sha256(result).hexdigest())
+        self.assertEqual(hashlib.sha256(payload).hexdigest(), md.hexdigest())
+        self.assertEqual(len(payload), vfile.target_size)
+        if copy:
+            self.assertEqual(payload, dst.getvalue())
+        self.assertEqual([], payload_threads())
+        return result
+
+    def test_segments(self):
+        """Test a payload of several whole segments, with read and readinto."""
+        data = os.urandom(8 * SEGMENT_SIZE)
+        payload = encrypt(data, self.keys[0])
+        self.assertEqual(data, self.check(payload, buffers=4, buffer_size=CIPHER_SEGMENT_SIZE))
+        self.assertEqual(data, self.check(payload, self.parallel, buffers=4, buffer_size=CIPHER_SEGMENT_SIZE))
+
+    def test_partial_segment(self):
+        """Test a payload ending with a partial segment, in buffers not aligned with the segments."""
+        data = os.urandom(3 * SEGMENT_SIZE + 1234)
+        payload = encrypt(data, self.keys[0])
+        self.assertEqual(data, self.check(payload, buffers=3, buffer_size=10000))
+        self.assertEqual(data, self.check(payload, self.parallel, buffers=3, buffer_size=10000))
+
+    def test_empty(self):
+        """Test an empty payload."""
+        self.assertEqual(b'', self.check(b'', buffers=2, buffer_size=1000))
+        self.assertEqual(b'', self.check(b'', self.parallel, buffers=2, buffer_size=1000))
+
+    def test_one_buffer(self):
+        """Test a ring of one buffer: the stages take turns."""
+        payload = encrypt(os.urandom(2 * SEGMENT_SIZE + 10), self.keys[0])
+        self.check(payload, buffers=1, buffer_size=CIPHER_SEGMENT_SIZE)
+        self.check(payload, self.parallel, buffers=1, buffer_size=CIPHER_SEGMENT_SIZE)
+
+    def test_no_copy(self):
+        """Test without destination, when the payload is already copied."""
+        payload = encrypt(os.urandom(2 * SEGMENT_SIZE), self.keys[0])
+        self.check(payload, self.parallel, copy=False, buffers=2, buffer_size=CIPHER_SEGMENT_SIZE)
+
+    def test_writer_failure(self):
+        """Test the destination failing mid-stream, should raise and stop the stages."""
+        payload = encrypt(os.urandom(8 * SEGMENT_SIZE), self.keys[0])
+        with self.assertRaises(OSError):
+            with PipelinedPayloadFile(io.BytesIO(payload), FailingWriter(3 * CIPHER_SEGMENT_SIZE), hashlib.sha256(),
+                                      buffers=2, buffer_size=CIPHER_SEGMENT_SIZE) as vfile:
+                decrypt(self.parallel, vfile, self.keys)
+        self.assertEqual([], payload_threads())
+
+    def test_decryption_failure(self):
+        """Test a corrupted segment mid-stream, should raise and stop the stages."""
+        payload = bytearray(encrypt(os.urandom(8 * SEGMENT_SIZE), self.keys[0]))
+        payload[4 * CIPHER_SEGMENT_SIZE + 100] ^= 0xFF
+        with self.assertRaises(ValueError):
+            with PipelinedPayloadFile(io.BytesIO(payload), io.BytesIO(), hashlib.sha256(),
+                                      buffers=2, buffer_size=CIPHER_SEGMENT_SIZE) as vfile:
+                decrypt(body_decrypt_all, vfile, self.keys)
+        self.assertEqual([], payload_threads())
+
+
+class testVerifyPayloadFile(unittest.TestCase):
+    """Payload file.
+
+    Copying and checksumming the payload as it is decrypted, with read and readinto.
+    """
+
+    def setUp(self):
+        """Get the session keys of the test file."""
+        self.keys, self.payload = session_keys()
+        self.pool = ThreadPoolExecutor(max_workers=4, thread_name_prefix='decrypt')
+
+    def tearDown(self):
+        """Stop the decryption threads."""
+        self.pool.shutdown(wait=True)
+
+    def parallel(self, infile, keys, output):
+        body_decrypt_parallel(infile, keys, output, self.pool, 4, buffer_size=3 * CIPHER_SEGMENT_SIZE)  # readinto
+
+    def check(self, payload, src=None):
+        """Decrypt ``payload`` with readinto, and compare with plain body_decrypt (using read)."""
+        dst = io.BytesIO()
+        md = hashlib.sha256()
+        with VerifyPayloadFile(src or io.BytesIO(payload), dst, md) as vfile:
+            result = decrypt(self.parallel, vfile, self.keys)
+        expected = decrypt(body_decrypt_all, io.BytesIO(payload), self.keys)
+        self.assertEqual(expected, result)
+        self.assertEqual(hashlib.sha256(expected).hexdigest(), hashlib.sha256(result).hexdigest())
+        self.assertEqual(hashlib.sha256(payload).hexdigest(), md.hexdigest())
+        self.assertEqual(payload, dst.getvalue())
+        self.assertEqual(len(payload), vfile.target_size)
+        return result
+
+    def test_test_file(self):
+        """Test the payload of the test file."""
+        self.assertEqual(c4gh_data.ORG_FILE, self.check(self.payload))
+
+    def test_segments(self):
+        """Test a payload of several whole segments."""
+        data = os.urandom(7 * SEGMENT_SIZE)
+        self.assertEqual(data, self.check(encrypt(data, self.keys[0])))
+
+    def test_partial_segment(self):
+        """Test a payload ending with a partial segment."""
+        data = os.urandom(4 * SEGMENT_SIZE + 1234)
+        self.assertEqual(data, self.check(encrypt(data, self.keys[0])))
+
+    def test_empty(self):
+        """Test an empty payload."""
+        self.assertEqual(b'', self.check(b''))
+
+    def test_short_reads(self):
+        """Test short reads: only what was read is copied and checksummed."""
+        payload = encrypt(os.urandom(3 * SEGMENT_SIZE + 10), self.keys[0])
+        self.check(payload, ShortReads(payload, 1000))
+
+    def test_readinto_view(self):
+        """Test readinto in a view on a larger buffer, at EOF."""
+        md = hashlib.sha256()
+        dst = io.BytesIO()
+        buf = bytearray(b'x' * 100)
+        vfile = VerifyPayloadFile(io.BytesIO(b'0123456789'), dst, md)
+        self.assertEqual(10, vfile.readinto(memoryview(buf)[20:]))
+        self.assertEqual(0, vfile.readinto(memoryview(buf)[30:]))
+        self.assertEqual(b'0123456789', bytes(buf[20:30]))
+        self.assertEqual(b'0123456789', dst.getvalue())
+        self.assertEqual(hashlib.sha256(b'0123456789').hexdigest(), md.hexdigest())
+        self.assertEqual(10, vfile.target_size)
+
+    def test_writer_failure(self):
+        """Test the destination failing mid-stream, should raise."""
+        payload = encrypt(os.urandom(6 * SEGMENT_SIZE), self.keys[0])
+        with self.assertRaises(OSError):
+            with VerifyPayloadFile(io.BytesIO(payload), FailingWriter(2 * CIPHER_SEGMENT_SIZE), hashlib.sha256()) as vfile:
+                decrypt(self.parallel, vfile, self.keys)
@@ -0,0 +1,126 @@
+import unittest
+import os
+import hashlib
+import threading
+import time
+from concurrent.futures import ThreadPoolExecutor
+from unittest import mock
+from testfixtures import TempDirectory
+import boto3
+from moto import mock_s3
+
+from lega.conf import CONF
+from lega.utils.storage import S3Storage
+from lega.backup import copy_and_hash
+
+MB = 1024 * 1024
+
+
+@mock_s3
+class TestS3Writer(unittest.TestCase):
+    """S3Writer.
+
+    Testing the multipart uploads against a local S3 stand-in (moto).
+    """
+
+    def setUp(self):
+        """Initialise fixtures."""
+        self._dir = TempDirectory()
+        if not CONF.has_section('s3-test'):
+            CONF.add_section('s3-test')
+        CONF.set('s3-test', 'region', 'us-east-1')
+        CONF.set('s3-test', 'access_key', 'test')
+        CONF.set('s3-test', 'secret_key', 'test')
+        CONF.set('s3-test', 'part_size', str(5 * MB))
+        CONF.set('s3-test', 'upload_workers', '2')
+        boto3.client('s3', region_name='us-east-1').create_bucket(Bucket='lega')
+        self.storage = S3Storage('s3://lega/archive', 's3-test', MB)
+
+    def tearDown(self):
+        """Remove setup variables."""
+        self.storage.pool.shutdown()
+        CONF.remove_section('s3-test')
+        self._dir.cleanup_all()
+
+    def _in_flight(self):
+        """Count the parts in flight, with the peak."""
+        upload_part = self.storage.client.upload_part
+        counts = {'now': 0, 'peak': 0}
+        lock = threading.Lock()
+
+        def counted(**kwargs):
+            with lock:
+                counts['now'] += 1
+                counts['peak'] = max(counts['peak'], counts['now'])
+            time.sleep(0.05)  # let the others pile up, if they can
+            try:
+                return upload_part(**kwargs)
+            finally:
+                with lock:
+                    counts['now'] -= 1
+
+        self.storage.client.upload_part = counted
+        return counts
+
+    def _uploads(self):
+        return self.storage.client.list_multipart_uploads(Bucket='lega').get('Uploads', [])
+
+    def test_multipart(self):
+        """Test a multipart upload, with at most upload_workers parts in flight."""
+        counts = self._in_flight()
+        data = os.urandom(23 * MB + 123)
+        writer = self.storage.put('file')
+        for i in range(0, len(data), MB):
+            writer.write(memoryview(data)[i:i + MB])
+        writer.close()
+        self.assertEqual(data, self.storage.get('file').read())
+        self.assertEqual(len(data), self.storage.stat('file'))
+        self.assertLessEqual(counts['peak'], 2)
+        self.assertEqual([], self._uploads())
+
+    def test_empty(self):
+        """Test an empty upload, sent as one empty part."""
+        self.storage.put('empty').close()
+        self.assertEqual(0, self.storage.stat('empty'))
+
+    def test_verify(self):
+        """Test the checksum of the stored object."""
+        data = os.urandom(MB + 1)
+        writer = self.storage.put('file')
+        writer.write(data)
+        writer.close()
+        self.assertEqual(hashlib.sha256(data).hexdigest(), self.storage.verify('file', 'sha256'))
+
+    def test_abort(self):
+        """Test abort, no upload left behind."""
+        writer = self.storage.put('file')
+        writer.write(os.urandom(6 * MB))
+        writer.abort()
+        self.assertEqual([], self._uploads())
+
+    @mock.patch('lega.backup.db')
+    def test_copy_and_hash(self, mock_db):
+        """Test the copy from the staging area."""
+        data = os.urandom(11 * MB)
+        path = self._dir.write('staged', data)
+        md = hashlib.sha256()
+        with ThreadPoolExecutor(2) as pool:
+            size = copy_and_hash(path, [self.storage], 'file', md, MB, pool)
+        self.assertEqual(len(data), size)
+        self.assertEqual(hashlib.sha256(data).hexdigest(), md.hexdigest())
+        self.assertEqual(data, self.storage.get('file').read())
+
+    @mock.patch('lega.backup.db')
+    def test_copy_and_hash_start_failure(self, mock_db):
+        """Test the started uploads are aborted, when another destination fails to start."""
+        path = self._dir.write('staged', b'data1')
+        broken = mock.Mock()
+        broken.put.side_effect = OSError('unreachable')
+        with ThreadPoolExecutor(2) as pool:
+            with self.assertRaises(OSError):
+                copy_and_hash(path, [self.storage, broken], 'file', hashlib.sha256(), MB, pool)
+        self.assertEqual([], self._uploads())
+
+
+if __name__ == '__main__':
+    unittest.main()